@@ -38,6 +38,7 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.*;
 import javax.swing.event.*;
 import java.util.Arrays;
@@ -61,10 +62,16 @@ MouseMotionListener
 
 	
   ////////////////////////////////////////////////////
-  // Kinect Instance
+  // Kinect Instance (null unless running live)
   ////////////////////////////////////////////////////
   KinectDigitizer kd;
 
+  ////////////////////////////////////////////////////
+  // Where depth frames come from: live Kinect,
+  // recorded file or synthetic scene
+  ////////////////////////////////////////////////////
+  FrameSource source;
+
   ////////////////////////////////////////////////////
   // Fast Java/AWT Window for Visualization
   ////////////////////////////////////////////////////
@@ -86,16 +93,105 @@ MouseMotionListener
   // with 2047 the point at infinity
   ////////////////////////////////////////////////////
   int depthcutoff = 625;
+  static final String REFERENCE_FILE = "reference_image.kfio";
+
+  ////////////////////////////////////////////////////
+  // Requests from the keyboard, carried out by the
+  // tracking loop on the next depth frame, so the
+  // tracker is never changed while it runs
+  ////////////////////////////////////////////////////
+  volatile boolean captureRequested = false;
+  volatile boolean toggleRequested = false;
+  volatile boolean levelRequested = false;
+  volatile boolean touchRequested = false;
+  volatile boolean filterRequested = false;
+
+  ////////////////////////////////////////////////////
+  // Touch mode: track height above the table (mm)
+  // instead of raw depth, between touchmin and touchmax
+  ////////////////////////////////////////////////////
+  boolean touchMode = false;
+  PlaneEstimator plane;
+  WorldProjector projector;						// world xyz of fingertips
+  int[] pixTouch = new int[640 * 480];
+  int touchmin = 5;
+  int touchmax = 25;
+
+  ////////////////////////////////////////////////////
+  // Temporal filter between the source and the tracker,
+  // smooth enough that 4 melt passes do the work of 20
+  ////////////////////////////////////////////////////
+  TemporalFilter filter;
+  static final int FILTERED_MELT = 4;
+
+  ////////////////////////////////////////////////////
+  // Contour search around last frame's hands only,
+  // the whole frame now and then
+  ////////////////////////////////////////////////////
+  boolean regions = false;
+
+  ////////////////////////////////////////////////////
+  // Point cloud capture of the tracked hands, raw
+  // depth inside the contour boxes (null when off)
+  ////////////////////////////////////////////////////
+  PointCloudExporter exporter;
+  static final int EXPORT_PAD = 8;
+
+  ////////////////////////////////////////////////////
+  // Screen calibration from touches on 3x3 targets,
+  // and the overlay that warps the depth image to it
+  ////////////////////////////////////////////////////
+  ScreenCalibration calibration = new ScreenCalibration();
+  static final String CALIBRATION_FILE = "screen_calibration.kfio";
+  static final int CALIBRATION_DWELL = 15;		// frames a touch must hold still
+  boolean calibrating = false;
+  int target = 0;
+  int dwell = 0;
+  double lastx, lasty;
+  boolean overlay = false;
+  int[] remap;
+
+  ////////////////////////////////////////////////////
+  // Latency from frame arrival to fingertips on screen
+  ////////////////////////////////////////////////////
+  FrameStamp stamp = new FrameStamp();
+  LatencyMonitor latency = new LatencyMonitor();
+  boolean reportLatency = false;
+  long lastReport = System.nanoTime();
+  long lastSequence = 0;
+  long skipped = 0;
 
 
 	public FingerTrackerApp() {
-		kd = new KinectDigitizer(0);
-		kd.start();
+		this(null);
+	}
+
+	public FingerTrackerApp(FrameSource src) {
+		if (src == null) {
+			kd = new KinectDigitizer(0);
+			kd.setMirrorDepth(true);
+			src = kd;
+		}
+		source = src;
+		source.start();
+		plane = kd != null ? kd.plane : new PlaneEstimator(new DepthCameraModel());
 		view = new CanvasFrame(this);
 		view.setLocation(0, 0);		
     g = view.getGraphics2D();     
 		ip = new ImageProcessor(640, 480);
 		fingers = new FingerTracker(640, 480);
+		projector = kd != null ? kd : new DepthCameraModel();
+		fingers.setProjector(projector);
+		fingers.setExecutor(StripExecutor.getShared());
+		if (new File(CALIBRATION_FILE).exists()) {
+			try {
+				calibration.load(CALIBRATION_FILE);
+				fingers.setCalibration(calibration);
+				out("Loaded screen calibration from " + CALIBRATION_FILE);
+			} catch (IOException e) {
+				out("Problem reading screen calibration: " + e.getMessage());
+			}
+		}
     
 	}
 	
@@ -104,10 +200,37 @@ MouseMotionListener
 		for (int frameCount = 0 ; true ; frameCount++) {
       
       ////////////////////////////////////////////////////
-      // COPY depth image from Kinect
+      // WAIT for the next depth frame, then copy it.  if
+      // tracking falls behind, frames in between are
+      // dropped and only the newest one is kept
       ////////////////////////////////////////////////////      
-      kd.getDepthFrame(pixDepth);
-      ip.cvtFlipHorizontal(pixDepth, pixDepth);				
+      if (!source.waitForDepthFrame(100)) continue;
+      source.getDepthFrame(pixDepth, stamp);
+      if (filterRequested) {
+        filterRequested = false;
+        toggleFilter();
+      }
+      if (filter != null) filter.filter(pixDepth, pixDepth);
+      if (toggleRequested) {
+        toggleRequested = false;
+        setBackgroundSubtraction(fingers.getBackgroundModel() == null);
+      }
+      if (captureRequested) {
+        captureRequested = false;
+        captureBackground();
+      }
+      if (levelRequested) {
+        levelRequested = false;
+        setLevel((fingers.getLevel() + 1) % 3);
+      }
+      if (touchRequested) {
+        touchRequested = false;
+        setTouchMode(!touchMode);
+      }
+      if (lastSequence > 0 && stamp.sequence > lastSequence + 1) {
+        skipped += stamp.sequence - lastSequence - 1;
+      }
+      lastSequence = stamp.sequence;
       
 //      for (int i = 0; i < pixDepth.length; i++) {
 //        if (pixDepth[i] < depthcutoff) {
@@ -116,21 +239,37 @@ MouseMotionListener
 //          pix[i] = 0;
 //        }
 //      }
-      fingers.setThreshold(depthcutoff);
-      fingers.update(pixDepth);
+      if (touchMode) {
+        plane.update(pixDepth);
+        plane.touchMap(pixDepth, pixTouch, touchmin, touchmax);
+        fingers.setThreshold(touchmax + 1);
+        fingers.update(pixTouch, stamp);
+      } else {
+        fingers.setThreshold(depthcutoff);
+        fingers.update(pixDepth, stamp);
+      }
+      PointCloudExporter pce = exporter;
+      if (pce != null) exportFrame(pce);
       ip.cvtDataToRGB(pixDepth);
-      view.copy(pixDepth);
+      if (overlay) {
+        view.copy(pixDepth, remap);
+      } else {
+        view.copy(pixDepth);
+      }
       
 
       ////////////////////////////////////////////////////
-      // DRAW CONTOURS
+      // DRAW CONTOURS (scaled up from the tracked level)
       ////////////////////////////////////////////////////      
       FindIsolines fc = fingers.fc;
-      int numcontours = fc.getNumContours();
+      int numcontours = overlay ? 0 : fc.getNumContours();
       g.setColor(Color.green);
+      AffineTransform t = g.getTransform();
+      g.scale(fingers.getScale(), fingers.getScale());
       for (int k = 0; k < numcontours; k++) {
           fc.drawContour(g, k);
       }
+      g.setTransform(t);
 
       ////////////////////////////////////////////////////
       // DRAW FINGERTIPS
@@ -138,13 +277,26 @@ MouseMotionListener
       int numfingers = fingers.getNumFingers();
       g.setColor(Color.yellow);
       for (int i = 0; i < numfingers; i++) {
-        int x = (int)fingers.getFingerX(i);
-        int y = (int)fingers.getFingerY(i);
+        int x = (int)(overlay ? fingers.getFingerDisplayX(i) : fingers.getFingerX(i));
+        int y = (int)(overlay ? fingers.getFingerDisplayY(i) : fingers.getFingerY(i));
         g.fillOval(x - 5, y - 5, 10, 10);
       }
+      if (calibrating) calibrateStep();
 
       
 			view.update();      
+
+      ////////////////////////////////////////////////////
+      // LATENCY and skipped frames, printed every 5 seconds
+      ////////////////////////////////////////////////////      
+      long now = System.nanoTime();
+      latency.frameProcessed(fingers.getFrameStamp(), fingers.getTrackedNanos(), now);
+      if (now - lastReport > 5000000000L) {
+        if (reportLatency) out(latency.report());
+        if (skipped > 0) out("falling behind, skipped " + skipped + " depth frames in the last 5 seconds");
+        skipped = 0;
+        lastReport = now;
+      }
 		}
 	}
   
@@ -155,12 +307,227 @@ MouseMotionListener
 		System.out.println(msg);
 	}
   
+  ////////////////////////////////////////////////////
+  // TRACK on pyramid level 0 (full), 1 (1/2) or 2 (1/4)
+  ////////////////////////////////////////////////////      
+  void setLevel(int level) {
+    boolean subtract = fingers.getBackgroundModel() != null;
+    fingers = new FingerTracker(640, 480, level);
+    fingers.setProjector(touchMode ? null : projector);
+    fingers.setExecutor(StripExecutor.getShared());
+    if (calibration.isCalibrated()) fingers.setCalibration(calibration);
+    if (subtract) setBackgroundSubtraction(true);
+    if (filter != null) fingers.setMeltFactor(Math.max(1, FILTERED_MELT >> (2 * level)));
+    fingers.setRegionTracking(regions);
+    out("tracking at pyramid level " + level);
+  }
+  
+  ////////////////////////////////////////////////////
+  // TOUCH MODE tracks height above the table in mm.
+  // the background model holds raw depth, so background
+  // subtraction is off while touch mode is on
+  ////////////////////////////////////////////////////      
+  void setTouchMode(boolean on) {
+    touchMode = on;
+    plane.reset();
+    fingers.setProjector(on ? null : projector);
+    if (on && fingers.getBackgroundModel() != null) setBackgroundSubtraction(false);
+    out("touch mode " + (on ? "on" : "off"));
+  }
+  
+  ////////////////////////////////////////////////////
+  // BACKGROUND subtraction, seeded from the saved
+  // reference frame of a live Kinect if there is one
+  ////////////////////////////////////////////////////      
+  void setBackgroundSubtraction(boolean on) {
+    if (on && touchMode) {
+      out("background subtraction is off in touch mode");
+      return;
+    }
+    fingers.setBackgroundSubtraction(on);
+    if (on && kd != null && new File(REFERENCE_FILE).exists() && kd.loadReference(REFERENCE_FILE)) {
+      if (isDepth(kd.pixDepth_ref)) {
+        fingers.setBackground(kd.pixDepth_ref);
+      } else {
+        out("ignoring " + REFERENCE_FILE + ", it holds RGB instead of depth; press N to capture it again");
+      }
+    }
+    out("background subtraction " + (on ? "on" : "off"));
+  }
+  
+  void toggleFilter() {
+    if (filter == null) {
+      filter = new TemporalFilter(640, 480, 3);
+      fingers.setMeltFactor(Math.max(1, FILTERED_MELT >> (2 * fingers.getLevel())));
+    } else {
+      filter = null;
+      fingers.setMeltFactor(Math.max(1, 20 >> (2 * fingers.getLevel())));
+    }
+    out("temporal filter " + (filter != null ? "on" : "off"));
+  }
+  
+  // reference files saved by older builds may hold the ARGB display image,
+  // whose values are all negative
+  static boolean isDepth(int[] buf) {
+    for (int i = 0; i < buf.length; i++) {
+      if (buf[i] < 0) return false;
+    }
+    return true;
+  }
+  
+  // take the current frame as the empty scene.  runs on the tracking
+  // thread while pixDepth still holds depth, not the RGB it is drawn as
+  void captureBackground() {
+    if (touchMode) {
+      out("background subtraction is off in touch mode");
+      return;
+    }
+    if (kd != null) {
+      kd.captureReference();
+      kd.saveReference(REFERENCE_FILE);
+      fingers.setBackground(kd.pixDepth_ref);
+    } else {
+      fingers.setBackground(pixDepth);
+    }
+    out("captured background");
+  }
+  
+  ////////////////////////////////////////////////////
+  // SCREEN CALIBRATION: hold one fingertip on each red
+  // target until it moves on; the homography is solved
+  // and saved after the last one
+  ////////////////////////////////////////////////////
+  void startCalibration() {
+    calibration.clearSamples();
+    calibrating = true;
+    overlay = false;
+    target = 0;
+    dwell = 0;
+    out("Calibrating: touch each red target with one finger and hold still");
+  }
+  
+  double targetX(int k) {
+    return w * (0.1 + 0.4 * (k % 3));
+  }
+  
+  double targetY(int k) {
+    return h * (0.1 + 0.4 * (k / 3));
+  }
+  
+  void calibrateStep() {
+    int tx = (int)targetX(target);
+    int ty = (int)targetY(target);
+    g.setColor(Color.red);
+    g.drawLine(tx - 10, ty, tx + 10, ty);
+    g.drawLine(tx, ty - 10, tx, ty + 10);
+    if (fingers.getNumFingers() != 1) {
+      dwell = 0;
+      return;
+    }
+    double x = fingers.getFingerX(0);
+    double y = fingers.getFingerY(0);
+    if (dwell > 0 && Math.abs(x - lastx) + Math.abs(y - lasty) > 4) dwell = 0;
+    lastx = x;
+    lasty = y;
+    if (++dwell < CALIBRATION_DWELL) return;
+    calibration.addSample(x, y, fingers.getFingerWorldX(0), fingers.getFingerWorldY(0), fingers.getFingerWorldZ(0), targetX(target), targetY(target));
+    out("target " + (target + 1) + " of 9");
+    dwell = 0;
+    if (++target < 9) return;
+    calibrating = false;
+    if (!calibration.solve(ScreenCalibration.HOMOGRAPHY)) {
+      out("Calibration failed, the touches were degenerate");
+      return;
+    }
+    remap = null;
+    fingers.setCalibration(calibration);
+    try {
+      calibration.save(CALIBRATION_FILE);
+      out("Saved screen calibration to " + CALIBRATION_FILE);
+    } catch (IOException e) {
+      out("Problem saving screen calibration: " + e.getMessage());
+    }
+  }
+  
+  void toggleOverlay() {
+    if (!overlay && calibration.getType() != ScreenCalibration.HOMOGRAPHY) {
+      out("No screen calibration, press 'C' to calibrate");
+      return;
+    }
+    if (remap == null) remap = calibration.buildRemap(w, h, view.w, view.h);
+    overlay = !overlay;
+    out("screen overlay " + (overlay ? "on" : "off"));
+  }
+  
+  ////////////////////////////////////////////////////
+  // START/STOP streaming hand point clouds to a .kpc file
+  ////////////////////////////////////////////////////      
+  void toggleExport() {
+    try {
+      if (exporter == null) {
+        String filename = "points-" + System.currentTimeMillis() + ".kpc";
+        PointCloudExporter pce = new PointCloudExporter(kd != null ? kd.camera : new DepthCameraModel());
+        pce.setMirrored(kd != null && kd.mirrorDepth);
+        pce.open(filename);
+        exporter = pce;
+        out("Writing point clouds to " + filename);
+      } else {
+        out("Wrote " + exporter.getFramesWritten() + " point cloud frames");
+        exporter.close();
+        exporter = null;
+      }
+    } catch (IOException e) {
+      out("Problem with point cloud export: " + e.getMessage());
+      exporter = null;
+    }
+  }
+  
+  // exporter is switched off from the key handler, so use the one passed in
+  void exportFrame(PointCloudExporter pce) {
+    BackgroundModel bg = fingers.getBackgroundModel();
+    pce.setMask(bg != null ? bg.getMask() : null, fingers.getLevel());
+    pce.setBoxes(fingers.fc, fingers.getScale(), EXPORT_PAD);
+    try {
+      pce.writeFrame(pixDepth, stamp.sequence, stamp.timestamp);
+    } catch (IOException e) {
+      if (exporter != pce) return;			// closed while writing
+      out("Problem with point cloud export: " + e.getMessage());
+      exporter = null;
+      try { pce.close(); } catch (IOException ignored) {}
+    }
+  }
+  
+  ////////////////////////////////////////////////////
+  // START/STOP recording live depth to a .kdr file
+  ////////////////////////////////////////////////////      
+  void toggleRecording() {
+    if (kd == null) {
+      out("Recording is only available with a live Kinect.");
+      return;
+    }
+    try {
+      DepthRecorder r = kd.getRecorder();
+      if (r == null) {
+        String filename = "depth-" + System.currentTimeMillis() + ".kdr";
+        kd.setRecorder(new DepthRecorder(filename, kd.DEPTH_WIDTH, kd.DEPTH_HEIGHT));
+        out("Recording depth to " + filename);
+      } else {
+        kd.setRecorder(null);
+        r.close();
+      }
+    } catch (IOException e) {
+      out("Problem with depth recording: " + e.getMessage());
+    }
+  }
+  
   ////////////////////////////////////////////////////
   // WINDOW EVENTS
   ////////////////////////////////////////////////////      
 	public void windowClosing(WindowEvent e) {
 		System.out.println("Window was closed.");
-		if (kd != null) kd.shutdown();
+		if (kd != null && kd.getRecorder() != null) toggleRecording();
+		if (exporter != null) toggleExport();
+		if (source != null) source.shutdown();
 	}
 	public void windowDeactivated(WindowEvent e) {}
 	public void windowActivated(WindowEvent e) {}
@@ -177,8 +544,19 @@ MouseMotionListener
 	public void keyPressed(KeyEvent e) {
 		int keyCode = e.getKeyCode();
 		switch( keyCode ) { 
-			case KeyEvent.VK_Q: depthcutoff -= 1; out("depthcutoff: " + depthcutoff); break;
-			case KeyEvent.VK_W: depthcutoff += 1; out("depthcutoff: " + depthcutoff); break;
+			case KeyEvent.VK_Q: if (touchMode) { touchmax -= 1; out("touchmax: " + touchmax + " mm"); } else { depthcutoff -= 1; out("depthcutoff: " + depthcutoff); } break;
+			case KeyEvent.VK_W: if (touchMode) { touchmax += 1; out("touchmax: " + touchmax + " mm"); } else { depthcutoff += 1; out("depthcutoff: " + depthcutoff); } break;
+			case KeyEvent.VK_P: touchRequested = true; break;
+			case KeyEvent.VK_R: toggleRecording(); break;
+			case KeyEvent.VK_L: levelRequested = true; break;
+			case KeyEvent.VK_B: toggleRequested = true; break;
+			case KeyEvent.VK_N: captureRequested = true; break;
+			case KeyEvent.VK_F: filterRequested = true; break;
+			case KeyEvent.VK_X: toggleExport(); break;
+			case KeyEvent.VK_C: startCalibration(); break;
+			case KeyEvent.VK_V: toggleOverlay(); break;
+			case KeyEvent.VK_H: regions = !regions; fingers.setRegionTracking(regions); out("search around hands " + (regions ? "on" : "off")); break;
+			case KeyEvent.VK_T: reportLatency = !reportLatency; latency.requestReset(); out("latency report " + (reportLatency ? "on" : "off")); break;
 			default: break;
 		}
 	}
@@ -198,8 +576,28 @@ MouseMotionListener
   ////////////////////////////////////////////////////
   // SETUP THE APP
   ////////////////////////////////////////////////////      	
+  // usage: FingerTrackerApp [-synthetic | -replay <file.kdr> [-fast]]
 	public static void main(String[] args) {
-		FingerTrackerApp app = new FingerTrackerApp();      
+		FrameSource src = null;
+		try {
+			if (args.length > 0 && args[0].equals("-synthetic")) {
+				src = new SyntheticFrameSource();
+			} else if (args.length > 1 && args[0].equals("-replay")) {
+				ReplayFrameSource replay = new ReplayFrameSource(args[1]);
+				replay.setRealTime(!(args.length > 2 && args[2].equals("-fast")));
+				src = replay;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not open " + args[1] + ": " + e.getMessage());
+			System.exit(1);
+		}
+		FingerTrackerApp app = null;
+		try {
+			app = new FingerTrackerApp(src);
+		} catch (IllegalStateException e) {
+			System.err.println("No kinects detected.  Exiting, dude.");
+			System.exit(0);
+		}
 		app.run();
 	}
     
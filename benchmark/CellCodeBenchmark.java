@@ -0,0 +1,115 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+import java.io.IOException;
+
+////////////////////////////////////////////////////////////////////////////////
+// Marching squares cell coding, FindIsolines.CODE_COLUMNS (original, column
+// order) against CODE_ROWS (memory order, carried row bits, no branches).
+//
+// Every frame is coded by both and the codes compared cell by cell, then
+// traced by both and the contours compared point by point, so a mismatch
+// anywhere is reported.  Then each coder is timed on its own.
+//
+// Frames come from a depth recording if one is given, else from the
+// synthetic scene.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.CellCodeBenchmark [file.kdr]
+////////////////////////////////////////////////////////////////////////////////
+public class CellCodeBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int FRAMES = 100;
+	static int WARMUP = 200;
+	static int REPEAT = 500;
+	static int[] THRESHOLDS = { 600, 625, 700 };
+
+	public static void main(String[] args) throws IOException {
+		int[][] frames;
+		if (args.length > 0) {
+			DepthRecording rec = new DepthRecording(args[0]);
+			w = rec.getWidth();
+			h = rec.getHeight();
+			frames = new int[Math.min(FRAMES, rec.getNumFrames())][w * h];
+			for (int k = 0; k < frames.length; k++) {
+				rec.readFrame(k, frames[k]);
+			}
+			rec.close();
+			System.out.println(frames.length + " frames from " + args[0]);
+		} else {
+			SyntheticFrameSource scene = new SyntheticFrameSource();
+			scene.setNoise(0.1);
+			frames = new int[FRAMES][w * h];
+			for (int k = 0; k < frames.length; k++) {
+				scene.renderFrame(frames[k], k);
+			}
+			System.out.println(frames.length + " synthetic frames");
+		}
+
+		FindIsolines rows = new FindIsolines(w, h);
+		FindIsolines cols = new FindIsolines(w, h);
+		rows.setPrintVerbose(false);
+		cols.setPrintVerbose(false);
+		rows.setCoder(FindIsolines.CODE_ROWS);
+		cols.setCoder(FindIsolines.CODE_COLUMNS);
+		int[] a = new int[w * h];
+		int[] b = new int[w * h];
+
+		// same codes, same contours
+		long cells = 0;
+		long codeMismatches = 0;
+		int contourMismatches = 0;
+		for (int t = 0; t < THRESHOLDS.length; t++) {
+			rows.setThreshold(THRESHOLDS[t]);
+			cols.setThreshold(THRESHOLDS[t]);
+			for (int k = 0; k < frames.length; k++) {
+				rows.preCodeImage(frames[k]);
+				cols.preCodeImage(frames[k]);
+				for (int y = 0; y < h - 1; y++) {
+					for (int x = 0; x < w - 1; x++) {
+						if (rows.cd[y * w + x] != cols.cd[y * w + x]) codeMismatches++;
+						cells++;
+					}
+				}
+				System.arraycopy(frames[k], 0, a, 0, w * h);
+				System.arraycopy(frames[k], 0, b, 0, w * h);
+				if (!sameContours(rows, rows.find(a), cols, cols.find(b))) contourMismatches++;
+			}
+		}
+		System.out.println(cells + " cells coded, " + codeMismatches + " differ");
+		System.out.println(THRESHOLDS.length * frames.length + " frames traced, " + contourMismatches + " with different contours");
+
+		rows.setThreshold(625);
+		cols.setThreshold(625);
+		double msCols = time(cols, frames);
+		double msRows = time(rows, frames);
+		System.out.format("%-16s %8.3f ms/frame%n", "columns", msCols);
+		System.out.format("%-16s %8.3f ms/frame  (%.1fx)%n", "rows", msRows, msCols / msRows);
+	}
+
+	static double time(FindIsolines fc, int[][] frames) {
+		for (int i = 0; i < WARMUP; i++) {
+			fc.preCodeImage(frames[i % frames.length]);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < REPEAT; i++) {
+			fc.preCodeImage(frames[i % frames.length]);
+		}
+		return (System.nanoTime() - t0) / 1e6 / REPEAT;
+	}
+
+	static boolean sameContours(FindIsolines p, int np, FindIsolines q, int nq) {
+		if (np != nq) return false;
+		for (int k = 0; k < np; k++) {
+			int l = p.getContourLength(k);
+			if (l != q.getContourLength(k)) return false;
+			for (int i = 0; i < l; i++) {
+				if (p.getContourX(k, i) != q.getContourX(k, i) || p.getContourY(k, i) != q.getContourY(k, i)) return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,115 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+////////////////////////////////////////////////////////////////////////////////
+// Per-frame cost of turning a raw depth payload into a mirrored int image.
+//
+//   bytewise + flip: byte at a time decode + ImageProcessor.cvtFlipHorizontal
+//   bulk + mirror:   bulk little-endian ShortBuffer decode with fused mirroring
+//   packed 11/10:    D11BIT_PACKED / D10BIT_PACKED unpacking with mirroring
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.DepthDecodeBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class DepthDecodeBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int WARMUP = 200;
+	static int FRAMES = 500;
+
+	public static void main(String[] args) {
+		int[] depth = new int[w * h];
+		for (int i = 0; i < w * h; i++) {
+			depth[i] = 500 + (i * 7) % 1547;
+		}
+		ByteBuffer frame = ByteBuffer.allocateDirect(2 * w * h).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < w * h; i++) {
+			frame.putShort((short)depth[i]);
+		}
+		frame.rewind();
+		ByteBuffer packed11 = pack(depth, 11);
+		int[] depth10 = new int[w * h];
+		for (int i = 0; i < w * h; i++) {
+			depth10[i] = depth[i] & 0x3FF;
+		}
+		ByteBuffer packed10 = pack(depth10, 10);
+
+		DepthDecoder decoder = new DepthDecoder(w, h);
+		ImageProcessor ip = new ImageProcessor(w, h);
+		int[] expected = new int[w * h];
+		int[] expected10 = new int[w * h];
+		int[] out = new int[w * h];
+		mirror(depth, expected);
+		mirror(depth10, expected10);
+
+		double msBytewise = time(0, decoder, ip, frame, out);
+		boolean okBytewise = Arrays.equals(out, expected);
+		double msBulk = time(1, decoder, ip, frame, out);
+		boolean okBulk = Arrays.equals(out, expected);
+		double ms11 = time(2, decoder, ip, packed11, out);
+		boolean ok11 = Arrays.equals(out, expected);
+		double ms10 = time(3, decoder, ip, packed10, out);
+		boolean ok10 = Arrays.equals(out, expected10);
+
+		System.out.format("%-16s %8s %10s  %s%n", "path", "bytes", "ms/frame", "correct");
+		System.out.format("%-16s %8d %10.3f  %b%n", "bytewise + flip", frame.capacity(), msBytewise, okBytewise);
+		System.out.format("%-16s %8d %10.3f  %b%n", "bulk + mirror", frame.capacity(), msBulk, okBulk);
+		System.out.format("%-16s %8d %10.3f  %b%n", "packed 11 bit", packed11.capacity(), ms11, ok11);
+		System.out.format("%-16s %8d %10.3f  %b%n", "packed 10 bit", packed10.capacity(), ms10, ok10);
+		System.out.format("bulk speedup over bytewise: %.2fx%n", msBytewise / msBulk);
+	}
+
+	static double time(int path, DepthDecoder decoder, ImageProcessor ip, ByteBuffer frame, int[] dst) {
+		for (int i = 0; i < WARMUP; i++) {
+			decode(path, decoder, ip, frame, dst);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			decode(path, decoder, ip, frame, dst);
+		}
+		return (System.nanoTime() - t0) / 1e6 / FRAMES;
+	}
+
+	static void decode(int path, DepthDecoder decoder, ImageProcessor ip, ByteBuffer frame, int[] dst) {
+		switch (path) {
+			case 0:
+				decoder.decodeBytewise(frame, dst, false);
+				ip.cvtFlipHorizontal(dst, dst);
+				break;
+			case 1: decoder.decode(frame, dst, true); break;
+			case 2: decoder.decodePacked(frame, dst, 11, true); break;
+			case 3: decoder.decodePacked(frame, dst, 10, true); break;
+		}
+	}
+
+	static void mirror(int[] src, int[] dst) {
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				dst[y * w + x] = src[y * w + w - 1 - x];
+			}
+		}
+	}
+
+	// reference MSB-first bit packer, the layout libfreenect delivers
+	static ByteBuffer pack(int[] src, int bits) {
+		ByteBuffer b = ByteBuffer.allocateDirect(src.length * bits / 8);
+		long acc = 0;
+		int n = 0;
+		for (int i = 0; i < src.length; i++) {
+			acc = (acc << bits) | (src[i] & ((1 << bits) - 1));
+			n += bits;
+			while (n >= 8) {
+				n -= 8;
+				b.put((byte)(acc >>> n));
+			}
+		}
+		b.rewind();
+		return b;
+	}
+}
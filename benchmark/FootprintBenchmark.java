@@ -0,0 +1,109 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Heap taken by FindIsolines and FingerTracker instances at 640x480, and the
+// time per frame of several trackers updated in turn, which is what a JVM
+// tracking many cameras or users does.  With more trackers the working set
+// outgrows the caches sooner, so what each instance keeps shows up here.
+//
+// Everything is measured twice: on the calling thread alone, and with a
+// StripExecutor of the given number of threads set, as the app does, so
+// contours are traced in bands with the band tracer's scratch.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.FootprintBenchmark [trackers] [threads]
+////////////////////////////////////////////////////////////////////////////////
+public class FootprintBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int FRAMES = 30;
+	static int ROUNDS = 20;
+
+	public static void main(String[] args) {
+		int trackers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		System.out.println(trackers + " trackers at " + w + "x" + h + ", executor of " + threads + " threads, "
+				+ Runtime.getRuntime().availableProcessors() + " cores available");
+
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.1);
+		int[][] frames = new int[FRAMES][w * h];
+		for (int k = 0; k < FRAMES; k++) {
+			scene.renderFrame(frames[k], k);
+		}
+		StripExecutor ex = new StripExecutor(threads);
+		measure(null, "no executor", trackers, frames);
+		measure(ex, threads + " threads", trackers, frames);
+		ex.shutdown();
+	}
+
+	// one configuration, in its own call so nothing of the last one is left reachable
+	static void measure(StripExecutor ex, String config, int trackers, int[][] frames) {
+		System.out.println();
+		System.out.println(config);
+		int[] pix = new int[w * h];
+
+		long before = used();
+		FindIsolines[] fcs = new FindIsolines[trackers];
+		for (int i = 0; i < trackers; i++) {
+			fcs[i] = new FindIsolines(w, h);
+			fcs[i].setPrintVerbose(false);
+			fcs[i].setThreshold(625);
+			fcs[i].setExecutor(ex);
+		}
+		long mid = used();
+		System.out.format("%-24s %8.2f MB%n", "FindIsolines", (mid - before) / 1e6 / trackers);
+		for (int i = 0; i < trackers; i++) {
+			for (int k = 0; k < FRAMES; k++) {
+				System.arraycopy(frames[k], 0, pix, 0, w * h);
+				fcs[i].find(pix);
+			}
+		}
+		mid = used();
+		System.out.format("%-24s %8.2f MB%n", "FindIsolines, found", (mid - before) / 1e6 / trackers);
+
+		FingerTracker[] ft = new FingerTracker[trackers];
+		for (int i = 0; i < trackers; i++) {
+			ft[i] = new FingerTracker(w, h);
+			ft[i].setPrintVerbose(false);
+			ft[i].setThreshold(625);
+			ft[i].setExecutor(ex);
+		}
+		long after = used();
+		System.out.format("%-24s %8.2f MB%n", "FingerTracker", (after - mid) / 1e6 / trackers);
+
+		long t0 = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			if (r == ROUNDS / 2) t0 = System.nanoTime();
+			for (int k = 0; k < FRAMES; k++) {
+				for (int i = 0; i < trackers; i++) {
+					System.arraycopy(frames[k], 0, pix, 0, w * h);
+					ft[i].update(pix);
+				}
+			}
+		}
+		double ms = (System.nanoTime() - t0) / 1e6 / (ROUNDS - ROUNDS / 2) / FRAMES / trackers;
+		System.out.format("%-24s %8.3f ms/frame each, %d trackers in turn%n", "update", ms, trackers);
+		after = used();
+		System.out.format("%-24s %8.2f MB%n", "FingerTracker, tracking", (after - mid) / 1e6 / trackers);
+		if (fcs[0] == null || ft[0] == null) System.out.println();		// keep them reachable
+	}
+
+	// heap in use once the garbage is gone.  the pause lets the compiler
+	// threads settle, without it the serial collector's figures wander
+	static long used() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+		}
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
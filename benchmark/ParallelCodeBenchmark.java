@@ -0,0 +1,100 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Scaling of FindIsolines cell coding over row strips on a StripExecutor,
+// from 1 thread up to the number of cores (or the count given), at full,
+// 1/2 and 1/4 resolution.
+//
+// The "forced" columns always split into one strip per thread, which is
+// the raw scaling curve; "auto" uses FindIsolines.MIN_STRIP_CELLS to fall
+// back to fewer strips, or none, where the frame is too small to pay for
+// waking the workers.  Every run is checked against sequential coding.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.ParallelCodeBenchmark [threads]
+////////////////////////////////////////////////////////////////////////////////
+public class ParallelCodeBenchmark {
+
+	static int WARMUP = 300;
+	static int REPEAT = 1000;
+	static int FRAMES = 30;
+
+	public static void main(String[] args) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(cores, 2);
+		System.out.println(cores + " cores available");
+
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.1);
+		int[][] full = new int[FRAMES][640 * 480];
+		for (int k = 0; k < FRAMES; k++) {
+			scene.renderFrame(full[k], k);
+		}
+		DepthPyramid pyramid = new DepthPyramid(640, 480, 3);
+
+		System.out.format("%-8s", "threads");
+		for (int level = 0; level < 3; level++) {
+			String size = (640 >> level) + "x" + (480 >> level);
+			System.out.format("%18s %-16s", size + " forced", "auto");
+		}
+		System.out.println("  (ms/frame)");
+
+		int mismatches = 0;
+		for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2) {
+			StripExecutor ex = new StripExecutor(threads);
+			System.out.format("%-8d", threads);
+			for (int level = 0; level < 3; level++) {
+				int w = 640 >> level;
+				int h = 480 >> level;
+				int[][] frames = new int[FRAMES][];
+				for (int k = 0; k < FRAMES; k++) {
+					pyramid.build(full[k], -1);
+					frames[k] = pyramid.getLevel(level).clone();
+				}
+				FindIsolines sequential = new FindIsolines(w, h);
+				FindIsolines fc = new FindIsolines(w, h);
+				sequential.setThreshold(625);
+				fc.setThreshold(625);
+				fc.setExecutor(ex);
+
+				fc.setMinStripCells(1);
+				double forced = time(fc, frames);
+				mismatches += check(fc, sequential, frames, w, h);
+				fc.setMinStripCells(FindIsolines.MIN_STRIP_CELLS);
+				double auto = time(fc, frames);
+				mismatches += check(fc, sequential, frames, w, h);
+				System.out.format("%18.3f %-16.3f", forced, auto);
+			}
+			System.out.println();
+			ex.shutdown();
+		}
+		System.out.println(mismatches + " cells differed from sequential coding");
+	}
+
+	static double time(FindIsolines fc, int[][] frames) {
+		for (int i = 0; i < WARMUP; i++) {
+			fc.preCodeImage(frames[i % frames.length]);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < REPEAT; i++) {
+			fc.preCodeImage(frames[i % frames.length]);
+		}
+		return (System.nanoTime() - t0) / 1e6 / REPEAT;
+	}
+
+	static int check(FindIsolines fc, FindIsolines sequential, int[][] frames, int w, int h) {
+		int bad = 0;
+		for (int k = 0; k < frames.length; k++) {
+			fc.preCodeImage(frames[k]);
+			sequential.preCodeImage(frames[k]);
+			for (int y = 0; y < h - 1; y++) {
+				for (int x = 0; x < w - 1; x++) {
+					if (fc.cd[y * w + x] != sequential.cd[y * w + x]) bad++;
+				}
+			}
+		}
+		return bad;
+	}
+}
@@ -0,0 +1,73 @@
+package benchmark;
+
+import kinectdigitizer.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Per-frame cost of turning a 640x480 depth frame into a metric point cloud.
+//
+//   per pixel divide: Z = 7.5 * f * 8 / (1091.5 - d), X and Y from col/row
+//   table:            DepthCameraModel.depthToPointCloud (z table + ray tables)
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.PointCloudBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class PointCloudBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int WARMUP = 200;
+	static int FRAMES = 500;
+
+	public static void main(String[] args) {
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.05);
+		int[] depth = new int[w * h];
+		scene.renderFrame(depth, 10);
+
+		DepthCameraModel camera = new DepthCameraModel();
+		float[] reference = new float[3 * w * h];
+		float[] xyz = new float[3 * w * h];
+
+		for (int i = 0; i < WARMUP; i++) {
+			divide(depth, reference);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			divide(depth, reference);
+		}
+		double msDivide = (System.nanoTime() - t0) / 1e6 / FRAMES;
+
+		for (int i = 0; i < WARMUP; i++) {
+			camera.depthToPointCloud(depth, xyz);
+		}
+		t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			camera.depthToPointCloud(depth, xyz);
+		}
+		double msTable = (System.nanoTime() - t0) / 1e6 / FRAMES;
+
+		// largest disagreement between the two, over valid points, in cm
+		double maxErr = 0;
+		for (int i = 0; i < xyz.length; i++) {
+			if (Float.isNaN(reference[i])) continue;
+			maxErr = Math.max(maxErr, Math.abs(reference[i] - xyz[i]));
+		}
+
+		System.out.format("%-18s %10s%n", "path", "ms/frame");
+		System.out.format("%-18s %10.3f%n", "per pixel divide", msDivide);
+		System.out.format("%-18s %10.3f%n", "table", msTable);
+		System.out.format("speedup %.2fx, max difference %.5f cm%n", msDivide / msTable, maxErr);
+	}
+
+	// the original KinectDigitizer arithmetic, one division per pixel
+	static void divide(int[] depth, float[] xyz) {
+		int n = w * h;
+		for (int i = 0; i < n; i++) {
+			int d = depth[i];
+			float z = (7.5f * 580.0f * 8.0f) / (1091.5f - d);
+			if (d == 2047) z = Float.NaN;
+			xyz[i] = z * (320.0f - i % w) / 580.0f;
+			xyz[n + i] = z * (240.0f - i / w) / 580.0f;
+			xyz[2 * n + i] = z;
+		}
+	}
+}
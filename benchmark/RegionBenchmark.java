@@ -0,0 +1,122 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Contour search over the whole 640x480 frame against search in the boxes
+// of the previous frame's contours (FingerTracker.setRegionTracking), on a
+// moving synthetic hand.
+//
+// Prints the time per frame of FindIsolines.find and of the whole tracker
+// update both ways, and how often the two trackers disagree on the number
+// of fingertips.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.RegionBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class RegionBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int FRAMES = 120;
+	static int WARMUP = 3;
+	static int REPEAT = 10;
+	static int PAD = 24;
+
+	public static void main(String[] args) {
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.1);
+		int[][] frames = new int[FRAMES][w * h];
+		for (int k = 0; k < FRAMES; k++) {
+			scene.renderFrame(frames[k], k);
+		}
+		int[] pix = new int[w * h];
+
+		// find alone, boxes from the frame before
+		FindIsolines full = new FindIsolines(w, h);
+		FindIsolines roi = new FindIsolines(w, h);
+		full.setPrintVerbose(false);
+		roi.setPrintVerbose(false);
+		full.setThreshold(625);
+		roi.setThreshold(625);
+		int[][] boxes = new int[FRAMES][];
+		int cells = 0;
+		for (int k = 0; k < FRAMES; k++) {
+			System.arraycopy(frames[k], 0, pix, 0, w * h);
+			int n = full.find(pix);
+			boxes[k] = new int[4 * n];
+			for (int c = 0; c < n; c++) {
+				boxes[k][4 * c] = (int)full.minx[c] - PAD;
+				boxes[k][4 * c + 1] = (int)full.miny[c] - PAD;
+				boxes[k][4 * c + 2] = (int)full.maxx[c] + 2 + PAD;
+				boxes[k][4 * c + 3] = (int)full.maxy[c] + 2 + PAD;
+			}
+		}
+		double msFull = 0;
+		double msRoi = 0;
+		for (int r = 0; r < WARMUP + REPEAT; r++) {
+			long t0 = System.nanoTime();
+			for (int k = 1; k < FRAMES; k++) {
+				full.find(frames[k]);
+			}
+			long t1 = System.nanoTime();
+			for (int k = 1; k < FRAMES; k++) {
+				roi.find(frames[k], boxes[k - 1], boxes[k - 1].length / 4);
+			}
+			long t2 = System.nanoTime();
+			if (r >= WARMUP) {
+				msFull += (t1 - t0) / 1e6;
+				msRoi += (t2 - t1) / 1e6;
+			}
+		}
+		for (int k = 1; k < FRAMES; k++) {
+			roi.find(frames[k], boxes[k - 1], boxes[k - 1].length / 4);
+			for (int j = 0; j < roi.getNumRegions(); j++) {
+				cells += (roi.getRegion(j, 2) - roi.getRegion(j, 0)) * (roi.getRegion(j, 3) - roi.getRegion(j, 1));
+			}
+		}
+		System.out.format("%-24s %8s%n", "", "ms/frame");
+		System.out.format("%-24s %8.3f%n", "find, whole frame", msFull / REPEAT / (FRAMES - 1));
+		System.out.format("%-24s %8.3f  (%.1f%% of the frame)%n", "find, last boxes", msRoi / REPEAT / (FRAMES - 1), 100.0 * cells / (FRAMES - 1) / (w * h));
+
+		// whole tracker
+		FingerTracker everywhere = new FingerTracker(w, h);
+		FingerTracker regions = new FingerTracker(w, h);
+		everywhere.setPrintVerbose(false);
+		regions.setPrintVerbose(false);
+		everywhere.setThreshold(625);
+		regions.setThreshold(625);
+		regions.setRegionTracking(true);
+		regions.setRegionPad(PAD);
+		msFull = 0;
+		msRoi = 0;
+		int differ = 0;
+		for (int r = 0; r < WARMUP + REPEAT; r++) {
+			long t0 = System.nanoTime();
+			for (int k = 0; k < FRAMES; k++) {
+				System.arraycopy(frames[k], 0, pix, 0, w * h);
+				everywhere.update(pix);
+			}
+			long t1 = System.nanoTime();
+			for (int k = 0; k < FRAMES; k++) {
+				System.arraycopy(frames[k], 0, pix, 0, w * h);
+				regions.update(pix);
+			}
+			long t2 = System.nanoTime();
+			if (r >= WARMUP) {
+				msFull += (t1 - t0) / 1e6;
+				msRoi += (t2 - t1) / 1e6;
+			}
+		}
+		for (int k = 0; k < FRAMES; k++) {
+			System.arraycopy(frames[k], 0, pix, 0, w * h);
+			everywhere.update(pix);
+			System.arraycopy(frames[k], 0, pix, 0, w * h);
+			regions.update(pix);
+			if (everywhere.getNumFingers() != regions.getNumFingers()) differ++;
+		}
+		System.out.format("%-24s %8.3f%n", "tracker, whole frame", msFull / REPEAT / FRAMES);
+		System.out.format("%-24s %8.3f%n", "tracker, regions", msRoi / REPEAT / FRAMES);
+		System.out.println(differ + " of " + FRAMES + " frames with a different number of fingertips");
+	}
+}
@@ -0,0 +1,92 @@
+package benchmark;
+
+import kinectdigitizer.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Per-frame cost of registering a 640x480 depth frame to the video frame.
+//
+//   per pixel:  the original depth2rgb arithmetic (xyz, offset, two divisions,
+//               two Math.round) called for every depth pixel
+//   tables:     DepthRegistration.align, depth indexed lookup tables
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.RegistrationBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class RegistrationBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int WARMUP = 200;
+	static int FRAMES = 500;
+
+	public static void main(String[] args) {
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.05);
+		int[] depth = new int[w * h];
+		scene.renderFrame(depth, 10);
+		int[] video = new int[w * h];
+		for (int i = 0; i < video.length; i++) {
+			video[i] = i;			// colour = own index, so aligned frames are index maps
+		}
+
+		DepthRegistration reg = new DepthRegistration(new DepthCameraModel());
+		int[] reference = new int[w * h];
+		int[] rgb = new int[w * h];
+
+		for (int i = 0; i < WARMUP; i++) {
+			perPixel(depth, video, reference);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			perPixel(depth, video, reference);
+		}
+		double msPixel = (System.nanoTime() - t0) / 1e6 / FRAMES;
+
+		int mapped = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			mapped = reg.align(depth, video, rgb, false, -1);
+		}
+		t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			reg.align(depth, video, rgb, false, -1);
+		}
+		double msTable = (System.nanoTime() - t0) / 1e6 / FRAMES;
+
+		// pixels whose video coordinate differs by more than one pixel
+		int off = 0;
+		for (int i = 0; i < rgb.length; i++) {
+			if (reference[i] < 0 || rgb[i] < 0) {
+				if (reference[i] != rgb[i]) off++;
+				continue;
+			}
+			int dx = reference[i] % w - rgb[i] % w;
+			int dy = reference[i] / w - rgb[i] / w;
+			if (Math.abs(dx) > 1 || Math.abs(dy) > 1) off++;
+		}
+
+		System.out.format("%-12s %10s%n", "path", "ms/frame");
+		System.out.format("%-12s %10.3f%n", "per pixel", msPixel);
+		System.out.format("%-12s %10.3f%n", "tables", msTable);
+		System.out.format("speedup %.2fx, %d pixels mapped, %d disagree by more than a pixel%n",
+				msPixel / msTable, mapped, off);
+	}
+
+	// the original KinectDigitizer.depth2rgb, with a bounds check added
+	static void perPixel(int[] depth, int[] video, int[] rgb) {
+		for (int idx = 0; idx < depth.length; idx++) {
+			int d = depth[idx];
+			if (d == 2047) {
+				rgb[idx] = -1;
+				continue;
+			}
+			double z = (7.5f * 580.0f * 8.0f) / (1091.5f - d);
+			double x = z * (320.0 - idx % w) / 580.0;
+			double y = z * (240.0 - idx / w) / 580.0;
+			double X = x + DepthRegistration.RGB_OFFSET_X;
+			double Y = y + DepthRegistration.RGB_OFFSET_Y;
+			double Z = z + DepthRegistration.RGB_OFFSET_Z;
+			int col = (int)Math.round(320 - DepthRegistration.RGB_FOCAL_LENGTH * (X / Z));
+			int row = (int)Math.round(240 - DepthRegistration.RGB_FOCAL_LENGTH * (Y / Z));
+			rgb[idx] = (col < 0 || row < 0 || col >= w || row >= h) ? -1 : video[col + w * row];
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// How many meltContours() iterations FingerTracker needs on noisy depth, with
+// and without a TemporalFilter in front of it, and what that costs per frame.
+//
+// Frames come from SyntheticFrameSource with edge speckle and holes.  Ground
+// truth is the tracker on the same frames without noise.  A frame counts as
+// correct when it has the same number of tips as the truth and every tip is
+// within MAX_ERROR pixels of a true one.  "needed" is the fewest melt
+// iterations that get as many frames right as the unfiltered tracker does
+// with its default 20, and ms/frame is filter plus tracking at that count.
+//
+// A median over N frames shows the scene as it was (N - 1) / 2 frames ago,
+// so it is scored against the truth that many frames back; that delay is
+// the price of the filter and is printed with it.  The exponential filter
+// restarts on edges and adds no delay there.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.TemporalFilterBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class TemporalFilterBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int FRAMES = 150;
+	static int WARMUP = 100;
+	static double NOISE = 0.1;
+	static double MAX_ERROR = 4.0;
+	static int[] MELTS = { 0, 1, 2, 4, 6, 10, 15, 20 };
+	static String[] NAMES = { "no filter", "median 3", "median 5", "exponential" };
+	static int[] DELAY = { 0, 1, 2, 0 };
+
+	public static void main(String[] args) {
+		// ground truth
+		SyntheticFrameSource clean = new SyntheticFrameSource();
+		int[] depth = new int[w * h];
+		double[][] truex = new double[FRAMES][];
+		double[][] truey = new double[FRAMES][];
+		FingerTracker truth = tracker(20);
+		for (int f = 0; f < FRAMES; f++) {
+			clean.renderFrame(depth, f);
+			truth.update(depth);
+			int n = truth.getNumFingers();
+			truex[f] = new double[n];
+			truey[f] = new double[n];
+			for (int i = 0; i < n; i++) {
+				truex[f][i] = truth.getFingerX(i);
+				truey[f][i] = truth.getFingerY(i);
+			}
+		}
+
+		SyntheticFrameSource noisy = new SyntheticFrameSource();
+		noisy.setNoise(NOISE);
+		int[] out = new int[w * h];
+
+		// warm up the JIT on every path before timing anything
+		for (int config = 0; config < NAMES.length; config++) {
+			TemporalFilter filter = filter(config);
+			FingerTracker ft = tracker(4);
+			for (int f = 0; f < WARMUP; f++) {
+				noisy.renderFrame(depth, f);
+				if (filter != null) filter.filter(depth, out);
+				ft.update(filter != null ? out : depth);
+			}
+		}
+
+		System.out.format("%-12s", "melt");
+		for (int m = 0; m < MELTS.length; m++) {
+			System.out.format("%8d", MELTS[m]);
+		}
+		System.out.format("%8s %10s %7s%n", "needed", "ms/frame", "delay");
+
+		double required = -1;		// set by the unfiltered run at 20 melts
+		for (int config = 0; config < NAMES.length; config++) {
+			System.out.format("%-12s", NAMES[config]);
+			int needed = -1;
+			double msNeeded = 0;
+			for (int m = 0; m < MELTS.length; m++) {
+				TemporalFilter filter = filter(config);
+				FingerTracker ft = tracker(MELTS[m]);
+				int correct = 0;
+				long elapsed = 0;
+				for (int f = 0; f < FRAMES; f++) {
+					noisy.renderFrame(depth, f);
+					long t0 = System.nanoTime();
+					int[] pix = depth;
+					if (filter != null) {
+						filter.filter(depth, out);
+						pix = out;
+					}
+					ft.update(pix);
+					elapsed += System.nanoTime() - t0;
+					if (f >= DELAY[config] && matches(ft, truex[f - DELAY[config]], truey[f - DELAY[config]])) correct++;
+				}
+				double fraction = (double)correct / (FRAMES - DELAY[config]);
+				System.out.format("%7.0f%%", 100 * fraction);
+				if (required < 0 && MELTS[m] == 20) required = fraction;
+				if (needed < 0 && required >= 0 && fraction >= required) {
+					needed = MELTS[m];
+					msNeeded = elapsed / 1e6 / FRAMES;
+				}
+			}
+			if (needed < 0) {
+				System.out.format("%8s %10s %7d%n", "-", "-", DELAY[config]);
+			} else {
+				System.out.format("%8d %10.3f %7d%n", needed, msNeeded, DELAY[config]);
+			}
+		}
+		System.out.println("(percent of frames with every fingertip right, by melt iterations; delay in frames)");
+	}
+
+	static FingerTracker tracker(int melt) {
+		FingerTracker ft = new FingerTracker(w, h);
+		ft.setThreshold(625);
+		ft.setMeltFactor(melt);
+		ft.setPrintVerbose(false);
+		return ft;
+	}
+
+	static TemporalFilter filter(int config) {
+		switch (config) {
+			case 1: return new TemporalFilter(w, h, 3);
+			case 2: return new TemporalFilter(w, h, 5);
+			case 3:
+				TemporalFilter f = new TemporalFilter(w, h, 3);
+				f.setMode(TemporalFilter.EXPONENTIAL);
+				return f;
+			default: return null;
+		}
+	}
+
+	static boolean matches(FingerTracker ft, double[] tx, double[] ty) {
+		int n = ft.getNumFingers();
+		if (n != tx.length) return false;
+		for (int i = 0; i < n; i++) {
+			double best = Double.MAX_VALUE;
+			for (int j = 0; j < n; j++) {
+				double dx = ft.getFingerX(i) - tx[j];
+				double dy = ft.getFingerY(i) - ty[j];
+				best = Math.min(best, dx * dx + dy * dy);
+			}
+			if (best > MAX_ERROR * MAX_ERROR) return false;
+		}
+		return true;
+	}
+}
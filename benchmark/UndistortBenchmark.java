@@ -0,0 +1,103 @@
+package benchmark;
+
+import kinectdigitizer.*;
+import imageprocessor.*;
+
+////////////////////////////////////////////////////////////////////////////////
+// Per-frame cost of lens undistortion on a 640x480 frame.
+//
+//   copy:       System.arraycopy, what a frame costs without correction
+//   per pixel:  the distortion polynomial evaluated for every pixel of every
+//               frame, nearest sample
+//   tables:     UndistortMap, NEAREST and BILINEAR, depth and RGB
+//
+// Also prints how far the example coefficients move the corners, which is
+// the error the tracker makes there without correction.
+//
+// java -cp .:./jars/jna.jar:./jars/freenect-jna.jar benchmark.UndistortBenchmark
+////////////////////////////////////////////////////////////////////////////////
+public class UndistortBenchmark {
+
+	static int w = 640;
+	static int h = 480;
+	static int WARMUP = 200;
+	static int FRAMES = 500;
+	static double F = DepthCameraModel.IR_FOCAL_LENGTH;
+	static double[] DIST = { -0.05, 0.02, 0.001, -0.001, 0 };	// k1, k2, p1, p2, k3
+
+	public static void main(String[] args) {
+		SyntheticFrameSource scene = new SyntheticFrameSource();
+		scene.setNoise(0.05);
+		int[] depth = new int[w * h];
+		scene.renderFrame(depth, 10);
+		int[] video = new int[w * h];
+		for (int i = 0; i < video.length; i++) {
+			video[i] = 0xFF000000 | (i * 0x9E3779B1) >>> 8;		// scrambled colours
+		}
+		int[] out = new int[w * h];
+		UndistortMap map = new UndistortMap(w, h, F, F, w / 2, h / 2, DIST, false);
+
+		System.out.format("%-24s %8s%n", "", "ms/frame");
+		System.out.format("%-24s %8.3f%n", "copy", time(0, map, depth, out));
+		System.out.format("%-24s %8.3f%n", "per pixel", time(1, map, depth, out));
+		map.setMode(UndistortMap.NEAREST);
+		System.out.format("%-24s %8.3f%n", "depth nearest", time(2, map, depth, out));
+		map.setMode(UndistortMap.BILINEAR);
+		System.out.format("%-24s %8.3f%n", "depth bilinear", time(2, map, depth, out));
+		map.setMode(UndistortMap.NEAREST);
+		System.out.format("%-24s %8.3f%n", "rgb nearest", time(3, map, video, out));
+		map.setMode(UndistortMap.BILINEAR);
+		System.out.format("%-24s %8.3f%n", "rgb bilinear", time(3, map, video, out));
+
+		double[] s = new double[2];
+		distort(0, 0, s);
+		System.out.format("corner (0, 0) is seen at (%.1f, %.1f), %.1f pixels off%n", s[0], s[1], Math.hypot(s[0], s[1]));
+		distort(w / 2, h / 2 + 100, s);
+		System.out.format("(320, 340) is seen at (%.1f, %.1f), %.1f pixels off%n", s[0], s[1], Math.hypot(s[0] - w / 2, s[1] - h / 2 - 100));
+	}
+
+	static double time(int method, UndistortMap map, int[] src, int[] dst) {
+		for (int i = 0; i < WARMUP; i++) {
+			run(method, map, src, dst);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			run(method, map, src, dst);
+		}
+		return (System.nanoTime() - t0) / 1e6 / FRAMES;
+	}
+
+	static void run(int method, UndistortMap map, int[] src, int[] dst) {
+		switch (method) {
+			case 0: System.arraycopy(src, 0, dst, 0, w * h); break;
+			case 1: perPixel(src, dst); break;
+			case 2: map.undistortDepth(src, dst); break;
+			default: map.undistortRGB(src, dst); break;
+		}
+	}
+
+	static double[] sxy = new double[2];
+
+	static void perPixel(int[] src, int[] dst) {
+		for (int v = 0, i = 0; v < h; v++) {
+			for (int u = 0; u < w; u++, i++) {
+				distort(u, v, sxy);
+				int x = (int)Math.round(sxy[0]);
+				int y = (int)Math.round(sxy[1]);
+				dst[i] = (x >= 0 && y >= 0 && x < w && y < h) ? src[y * w + x] : 2047;
+			}
+		}
+	}
+
+	// where the lens shows undistorted pixel (u, v)
+	static void distort(double u, double v, double[] s) {
+		double x = (u - w / 2) / F;
+		double y = (v - h / 2) / F;
+		double r2 = x * x + y * y;
+		double radial = 1 + r2 * (DIST[0] + r2 * (DIST[1] + r2 * DIST[4]));
+		double xd = x * radial + 2 * DIST[2] * x * y + DIST[3] * (r2 + 2 * x * x);
+		double yd = y * radial + DIST[2] * (r2 + 2 * y * y) + 2 * DIST[3] * x * y;
+		s[0] = F * xd + w / 2;
+		s[1] = F * yd + h / 2;
+	}
+}
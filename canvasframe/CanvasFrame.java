@@ -115,7 +115,21 @@ public class CanvasFrame extends JFrame implements MouseListener, MouseMotionLis
 		}
 	}
 
-	public void show(int[] src) {				
+	// warped copy: pixel i shows src[remap[i]], black where remap[i] < 0
+	// (see ScreenCalibration.buildRemap)
+	public void copy(int[] src, int[] remap) {
+		Object lock = new Object();
+		synchronized (lock) {
+			for (int i = 0; i < w * h; i++) {
+				int k = remap[i];
+				pix[i] = k < 0 ? 0xFF000000 : src[k];
+			}
+			mmi.newPixels(0, 0, w, h);
+			copy(im);
+		}
+	}
+
+	public void show(int[] src) {
 		copy(src);
 		updateFPS();
 		bs.show();
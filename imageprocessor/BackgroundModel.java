@@ -0,0 +1,147 @@
+package imageprocessor;
+
+import java.util.Arrays;
+
+/*
+ Running per-pixel background of a depth image (exponentially
+ weighted mean and variance), and a foreground mask of whatever is
+ in front of it.  Everything is updated in place on primitive
+ arrays, one pass per frame, no allocation.
+
+ A pixel is foreground when it is valid and closer than the
+ background by more than both minDifference raw units and
+ sigmas standard deviations.  Background pixels adapt at
+ learningRate, foreground pixels at the much slower
+ foregroundRate, so a hand resting on the table is not learned
+ away in seconds but a chair that was moved eventually is.
+ Invalid (2047) samples never touch the model; a pixel with no
+ valid background yet takes its first valid sample as background.
+*/
+public class BackgroundModel {
+
+	public static final int INVALID = 2047;
+
+	int w;
+	int h;
+	float[] mean;
+	float[] var;
+	byte[] mask;				// 1 = foreground, from the last segment()
+
+	public float learningRate = 0.02f;
+	public float foregroundRate = 0.0005f;
+	public float minDifference = 12;		// raw depth units
+	public float sigmas = 3;
+	public float initialVariance = 4;
+
+	public BackgroundModel(int w, int h) {
+		this.w = w;
+		this.h = h;
+		mean = new float[w * h];
+		var = new float[w * h];
+		mask = new byte[w * h];
+		reset();
+	}
+
+	// forget everything, the next frames are learned from scratch
+	public void reset() {
+		Arrays.fill(mean, INVALID);
+		Arrays.fill(var, initialVariance);
+		Arrays.fill(mask, (byte)0);
+	}
+
+	// take a reference frame (e.g. a captured empty scene) as the background
+	public void setBackground(int[] ref) {
+		for (int i = 0; i < mean.length; i++) {
+			mean[i] = ref[i];
+			var[i] = initialVariance;
+		}
+	}
+
+	// current background estimate, rounded to raw depth
+	public void getBackground(int[] dst) {
+		for (int i = 0; i < mean.length; i++) {
+			dst[i] = Math.round(mean[i]);
+		}
+	}
+
+	public byte[] getMask() {
+		return mask;
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getHeight() {
+		return h;
+	}
+
+  ////////////////////////////////////////////////////
+  // SEGMENT depth into out: foreground pixels keep
+  // their depth, everything else becomes 2047 so the
+  // isoline finder skips it.  updates the model and
+  // mask as it goes.  depth and out may be the same.
+  // returns the number of foreground pixels.
+  ////////////////////////////////////////////////////
+	public int segment(int[] depth, int[] out) {
+		float[] mean = this.mean;
+		float[] var = this.var;
+		float k2 = sigmas * sigmas;
+		float min2 = minDifference * minDifference;
+		int count = 0;
+		for (int i = 0; i < mean.length; i++) {
+			int d = depth[i];
+			if (d >= INVALID) {
+				mask[i] = 0;
+				out[i] = INVALID;
+				continue;
+			}
+			float m = mean[i];
+			if (m >= INVALID) {
+				// first valid sample here, nothing to compare with yet
+				mean[i] = d;
+				var[i] = initialVariance;
+				mask[i] = 0;
+				out[i] = INVALID;
+				continue;
+			}
+			float diff = d - m;
+			float v = var[i];
+			float diff2 = diff * diff;
+			boolean foreground = diff < 0 && diff2 > min2 && diff2 > k2 * v;
+			float a = foreground ? foregroundRate : learningRate;
+			mean[i] = m + a * diff;
+			var[i] = (1 - a) * (v + a * diff2);
+			if (foreground) {
+				mask[i] = 1;
+				out[i] = d;
+				count++;
+			} else {
+				mask[i] = 0;
+				out[i] = INVALID;
+			}
+		}
+		return count;
+	}
+
+	// same, without touching the model
+	public int apply(int[] depth, int[] out) {
+		float k2 = sigmas * sigmas;
+		float min2 = minDifference * minDifference;
+		int count = 0;
+		for (int i = 0; i < mean.length; i++) {
+			int d = depth[i];
+			float diff = d - mean[i];
+			float diff2 = diff * diff;
+			if (d < INVALID && mean[i] < INVALID && diff < 0 && diff2 > min2 && diff2 > k2 * var[i]) {
+				mask[i] = 1;
+				out[i] = d;
+				count++;
+			} else {
+				mask[i] = 0;
+				out[i] = INVALID;
+			}
+		}
+		return count;
+	}
+}
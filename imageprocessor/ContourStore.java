@@ -0,0 +1,61 @@
+package imageprocessor;
+
+import java.util.Arrays;
+
+/*
+ Points of the contours of one frame, with the offset and length of
+ each contour, sized to what was traced rather than to the image.
+ The arrays double when a frame needs more and are kept for the
+ next frame, so a steady scene allocates nothing.
+
+ No more than maxPoints points are ever stored.  A tracer that runs
+ out drops the contour it is on and stops, so what is kept is always
+ whole contours.
+
+ Coordinates are floats, in pixels of the traced image.
+*/
+public class ContourStore {
+
+	public static final int POINTS = 4096;		// capacity to start with
+	public static final int CONTOURS = 256;
+
+	public float[] x;
+	public float[] y;
+	public int[] offset;						// first point of each contour
+	public int[] length;
+	int maxPoints;
+
+	public ContourStore(int maxPoints) {
+		this.maxPoints = maxPoints;
+		x = new float[Math.min(POINTS, maxPoints)];
+		y = new float[x.length];
+		offset = new int[CONTOURS];
+		length = new int[CONTOURS];
+	}
+
+	public void setMaxPoints(int maxPoints) {
+		this.maxPoints = maxPoints;
+	}
+
+	public int getMaxPoints() {
+		return maxPoints;
+	}
+
+	// room for n points, false if that is over the budget
+	public boolean reservePoints(int n) {
+		if (n > maxPoints) return false;
+		if (n <= x.length) return true;
+		int capacity = (int)Math.min(Math.max(2L * x.length, n), maxPoints);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		return true;
+	}
+
+	// room for n contours
+	public void reserveContours(int n) {
+		if (n <= offset.length) return;
+		int capacity = Math.max(2 * offset.length, n);
+		offset = Arrays.copyOf(offset, capacity);
+		length = Arrays.copyOf(length, capacity);
+	}
+}
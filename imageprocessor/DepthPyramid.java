@@ -0,0 +1,108 @@
+package imageprocessor;
+
+/*
+ Half, quarter, ... resolution copies of a depth image, built once
+ per frame.  Pooling ignores invalid (2047) samples so holes don't
+ bleed into their neighbours.
+*/
+public class DepthPyramid {
+
+	public static final int MIN = 0;		// nearest valid sample of each 2x2 block
+	public static final int MEDIAN = 1;		// lower median of the valid samples
+	public static final int INVALID = 2047;
+
+	int numLevels;
+	int[] widths;
+	int[] heights;
+	int[][] levels;
+	int mode = MIN;
+	long sequence = -1;
+
+	public DepthPyramid(int w, int h, int numLevels) {
+		this.numLevels = numLevels;
+		widths = new int[numLevels];
+		heights = new int[numLevels];
+		levels = new int[numLevels][];
+		for (int k = 0; k < numLevels; k++) {
+			widths[k] = w >> k;
+			heights[k] = h >> k;
+			if (k > 0) levels[k] = new int[widths[k] * heights[k]];
+		}
+	}
+
+	public void setMode(int mode) {
+		this.mode = mode;
+		sequence = -1;
+	}
+
+  ////////////////////////////////////////////////////
+  // BUILD all levels from a full resolution frame.
+  // does nothing if sequence matches the last build,
+  // so several consumers can share one pyramid.
+  ////////////////////////////////////////////////////
+	public void build(int[] depth, long sequence) {
+		if (sequence >= 0 && sequence == this.sequence && levels[0] == depth) return;
+		levels[0] = depth;
+		for (int k = 1; k < numLevels; k++) {
+			downsample(levels[k - 1], widths[k - 1], heights[k - 1], levels[k], mode);
+		}
+		this.sequence = sequence;
+	}
+
+	public void build(int[] depth) {
+		build(depth, -1);
+	}
+
+	public int[] getLevel(int k) {
+		return levels[k];
+	}
+
+	public int getWidth(int k) {
+		return widths[k];
+	}
+
+	public int getHeight(int k) {
+		return heights[k];
+	}
+
+	public int getNumLevels() {
+		return numLevels;
+	}
+
+  ////////////////////////////////////////////////////
+  // POOL 2x2 blocks of src (sw x sh) into dst
+  ////////////////////////////////////////////////////
+	public static void downsample(int[] src, int sw, int sh, int[] dst, int mode) {
+		int dw = sw / 2;
+		int dh = sh / 2;
+		for (int y = 0; y < dh; y++) {
+			int s = 2 * y * sw;
+			int d = y * dw;
+			if (mode == MIN) {
+				for (int x = 0; x < dw; x++, s += 2) {
+					// 2047 is the largest raw value, so plain min skips holes
+					int a = Math.min(src[s], src[s + 1]);
+					int b = Math.min(src[s + sw], src[s + sw + 1]);
+					dst[d + x] = Math.min(a, b);
+				}
+			} else {
+				for (int x = 0; x < dw; x++, s += 2) {
+					dst[d + x] = median4(src[s], src[s + 1], src[s + sw], src[s + sw + 1]);
+				}
+			}
+		}
+	}
+
+	// lower median of the valid values among a, b, c, d, or INVALID if none
+	static int median4(int a, int b, int c, int d) {
+		int t;
+		if (a > b) { t = a; a = b; b = t; }
+		if (c > d) { t = c; c = d; d = t; }
+		if (a > c) { t = a; a = c; c = t; }
+		if (b > d) { t = b; b = d; d = t; }
+		if (b > c) { t = b; b = c; c = t; }
+		// a <= b <= c <= d with invalid samples sorted to the end,
+		// so with three or four valid samples the lower median is b, otherwise a
+		return c < INVALID ? b : a;
+	}
+}
@@ -38,25 +38,27 @@ public class FindIsolines {
   
 	double TAU = 3.14159 * 2;
 	public double[] tx;		// tmp
-	public double[] vx;		// tmp
-	public double[] vy;		// tmp
+	public float[] vx;		// tmp
+	public float[] vy;		// tmp
 	public double[] vn;		// tmp
 	public double[] minx;
 	public double[] miny;
 	public double[] maxx;
 	public double[] maxy;
 	
-	public int[] cd;	
-	public double[] cx;	
-	public double[] cy;
+	public byte[] cd;		// case 0..15 of each cell
+	public float[] cx;		// cx, cy, co, cl are the arrays of store
+	public float[] cy;
 	public double[] cu;
 	public int[] cl;
 	public int[] co;
 	public double[] cu2;	
 	public double[] tips;
+	ContourStore store;
+	int room;				// points that fit without asking store for more
 			
 	public int n = 0;
-	int MAX_POINTS = 5000;
+	int MAX_POINTS = 64 * 1024;
 	double EDGE_LENGTH = 2;	// actually edge length squared
 	int[] img;
 	int w;
@@ -64,6 +66,11 @@ public class FindIsolines {
 	double STEP_LENGTH = 0.25;
 	double step = STEP_LENGTH;
 	int threshold = 128;
+	int[] rowbits;			// threshold bits of the row above, for CODE_ROWS
+	long[] rowwords0;		// the same 64 to a long, this row and the next
+	long[] rowwords1;
+	long[] mixed;			// cells with a contour through them, rowwords longs per row
+	int rowwords;
 	
 	public int numContours = 0;
 	
@@ -78,20 +85,14 @@ public class FindIsolines {
 	public FindIsolines(int w, int h) {
 		this.w = w;
 		this.h = h;		
-		cd = new int[w * h];	
-		cx = new double[w * h];	
-		cy = new double[w * h];
-		cu = new double[w * h];
-		cl = new int[w * h];
-		co = new int[w * h];
-		cu = new double[w * h];
-		minx = new double[w * h];
-		miny = new double[w * h];
-		maxx = new double[w * h];
-		maxy = new double[w * h];
-		vx = new double[w * h];
-		vy = new double[w * h];
-		tips = new double[w * h];
+		cd = new byte[w * h];	
+		store = new ContourStore(MAX_POINTS);
+		attach();
+		rowbits = new int[w];
+		rowwords = (w + 63) >> 6;
+		rowwords0 = new long[rowwords + 1];
+		rowwords1 = new long[rowwords + 1];
+		mixed = new long[h * rowwords];
 	}
 	
   ////////////////////////////////////////////////////
@@ -100,66 +101,424 @@ public class FindIsolines {
 	public void setThreshold(int t) {
 		threshold = t;
 	}
+	
+  ////////////////////////////////////////////////////
+  // STORE of the contours, no more than MAX_POINTS
+  // points unless set otherwise, and only as big as
+  // the biggest frame so far needed
+  ////////////////////////////////////////////////////
+  public ContourStore getStore() {
+    return store;
+  }
+  
+  public void setMaxPoints(int points) {
+    store.setMaxPoints(points);
+    attach();
+  }
+  
+  public int getMaxPoints() {
+    return store.getMaxPoints();
+  }
+  
+  // take up the arrays of store after it grew, with per
+  // point and per contour scratch to match
+  void attach() {
+    cx = store.x;
+    cy = store.y;
+    co = store.offset;
+    cl = store.length;
+    room = Math.min(cx.length, store.getMaxPoints());
+    if (vx == null || vx.length < cx.length) {
+      vx = new float[cx.length];
+      vy = new float[cx.length];
+      cu = new double[cx.length];
+      cu2 = new double[cx.length];
+      tips = new double[cx.length];
+    }
+    if (minx == null || minx.length < cl.length) {
+      minx = new double[cl.length];
+      miny = new double[cl.length];
+      maxx = new double[cl.length];
+      maxy = new double[cl.length];
+    }
+  }
+  
+  // room for n points, false if over budget
+  boolean reservePoints(int n) {
+    if (!store.reservePoints(n)) return false;
+    attach();
+    return true;
+  }
+  
+  void reserveContours(int n) {
+    store.reserveContours(n);
+    attach();
+  }
 
-	final int CASE0		=	0x00000000; 
-	final int CASE1		=	0x00000001;
-	final int CASE2		=	0x00000010;
-	final int CASE3		=	0x00000011;
-	final int CASE4		=	0x00000100;
-	final int CASE5		=	0x00000101;
-	final int CASE6		=	0x00000110;
-	final int CASE7		=	0x00000111;
-	final int CASE8		=	0x00001000;
-	final int CASE9		=	0x00001001;
-	final int CASE10	=	0x00001010;
-	final int CASE11	=	0x00001011;
-	final int CASE12	=	0x00001100;
-	final int CASE13	=	0x00001101;
-	final int CASE14	=	0x00001110;
-	final int CASE15	=	0x00001111;
+	// case of a cell: TL << 3 | TR << 2 | BR << 1 | BL, 1 where below threshold
+	final int CASE0		=	0;
+	final int CASE1		=	1;
+	final int CASE2		=	2;
+	final int CASE3		=	3;
+	final int CASE4		=	4;
+	final int CASE5		=	5;
+	final int CASE6		=	6;
+	final int CASE7		=	7;
+	final int CASE8		=	8;
+	final int CASE9		=	9;
+	final int CASE10	=	10;
+	final int CASE11	=	11;
+	final int CASE12	=	12;
+	final int CASE13	=	13;
+	final int CASE14	=	14;
+	final int CASE15	=	15;
 	final int WHITE		=	1;
 	final int BLACK		=	1;
   
   ////////////////////////////////////////////////////
   // FIND ISOLINES
+  // the outer ring of pixels is the border while the
+  // frame is coded and traced, and in is put back as
+  // it was afterwards, as for rectangles below.
   ////////////////////////////////////////////////////
   public int find(int[] in) {
-    createOnePixelBorder(in, threshold + 1);
+    int ring = 2 * (w + h - 2);
+    if (ringsave.length < ring) ringsave = new int[ring];
+    swapRing(in, 0, 0, w, h, 0, true);
     preCodeImage(in);
-    int numContours = findIsolines(in);
+    int bands = traceBands((h - 1) * (w - 1));
+    int numContours = bands > 1 ? findIsolinesBands(in, bands) : findIsolines(in);
+    swapRing(in, 0, 0, w, h, 0, false);
     return numContours;
   }
   
   ////////////////////////////////////////////////////
-  // CREATE single pixel, 0-valued border around pix
+  // FIND ISOLINES inside rectangles only
+  // pixels x0..x1-1, y0..y1-1 of the full frame, and
+  // contours come out in full frame coordinates.  the
+  // outer ring of pixels of each rectangle is the
+  // border, so contours are closed at its edge like
+  // at the frame's, and in is put back as it was.
+  // overlapping rectangles are merged into one.
+  // always codes with CODE_ROWS.
   ////////////////////////////////////////////////////
-  private void createOnePixelBorder(int[] in, int borderval) {
-    for (int i = 0, j = w*h-1; i < w; i++, j--) {
-      in[i] = borderval;
-      in[j] = borderval;
+  public int find(int[] in, int x0, int y0, int x1, int y1) {
+    rect[0] = x0;
+    rect[1] = y0;
+    rect[2] = x1;
+    rect[3] = y1;
+    return find(in, rect, 1);
+  }
+  
+  // n rectangles, x0, y0, x1, y1 each (x1 and y1 exclusive)
+  public int find(int[] in, int[] rects, int n) {
+    int m = mergeRects(rects, n);
+    int ring = 0;
+    int cells = 0;
+    for (int r = 0; r < 4 * m; r += 4) {
+      ring += 2 * (rois[r + 2] - rois[r] + rois[r + 3] - rois[r + 1] - 2);
+      cells += (rois[r + 2] - rois[r] - 1) * (rois[r + 3] - rois[r + 1] - 1);
+    }
+    if (ringsave.length < ring) ringsave = new int[ring];
+    Arrays.fill(mixed, 0);
+    for (int r = 0, off = 0; r < 4 * m; r += 4) {
+      off = swapRing(in, rois[r], rois[r + 1], rois[r + 2], rois[r + 3], off, true);
+      codeRect(in, rois[r], rois[r + 1], rois[r + 2], rois[r + 3]);
+    }
+    int bands = traceBands(cells);
+    int numContours = bands > 1 ? findIsolinesBands(in, bands) : findIsolines(in);
+    for (int r = 0, off = 0; r < 4 * m; r += 4) {
+      off = swapRing(in, rois[r], rois[r + 1], rois[r + 2], rois[r + 3], off, false);
     }
-    for (int i = 0, j = w-1; i < h; i++, j+=w) {
-      in[i] = borderval;
-      in[j] = borderval;
-    }    
+    return numContours;
+  }
+  
+  int[] rect = new int[4];
+  int[] rois = new int[4 * 8];			// merged rectangles of the last find, numRois of them
+  int numRois;
+  int[] ringsave = new int[0];			// what was under their borders
+  
+  public int getNumRegions() {
+    return numRois;
+  }
+  
+  // rectangle k of the last find(in, rects, n) after merging: x0, y0, x1, y1
+  public int getRegion(int k, int i) {
+    return rois[4 * k + i];
+  }
+  
+  // clip rects to the frame into rois and merge those that overlap
+  int mergeRects(int[] rects, int n) {
+    if (rois.length < 4 * n) rois = new int[4 * n];
+    int m = 0;
+    for (int r = 0; r < 4 * n; r += 4) {
+      int x0 = Math.max(rects[r], 0);
+      int y0 = Math.max(rects[r + 1], 0);
+      int x1 = Math.min(rects[r + 2], w);
+      int y1 = Math.min(rects[r + 3], h);
+      if (x1 - x0 < 3 || y1 - y0 < 3) continue;			// all border, nothing inside
+      rois[4 * m] = x0;
+      rois[4 * m + 1] = y0;
+      rois[4 * m + 2] = x1;
+      rois[4 * m + 3] = y1;
+      m++;
+    }
+    boolean merged = true;
+    while (merged) {
+      merged = false;
+      for (int a = 0; a < 4 * m; a += 4) {
+        for (int b = a + 4; b < 4 * m; b += 4) {
+          if (rois[a] < rois[b + 2] && rois[b] < rois[a + 2] && rois[a + 1] < rois[b + 3] && rois[b + 1] < rois[a + 3]) {
+            rois[a] = Math.min(rois[a], rois[b]);
+            rois[a + 1] = Math.min(rois[a + 1], rois[b + 1]);
+            rois[a + 2] = Math.max(rois[a + 2], rois[b + 2]);
+            rois[a + 3] = Math.max(rois[a + 3], rois[b + 3]);
+            m--;
+            System.arraycopy(rois, 4 * m, rois, b, 4);
+            b -= 4;
+            merged = true;
+          }
+        }
+      }
+    }
+    numRois = m;
+    return m;
+  }
+  
+  // save the outer ring of a rectangle into ringsave from off and border it,
+  // or put it back; returns the offset after it
+  int swapRing(int[] in, int x0, int y0, int x1, int y1, int off, boolean border) {
+    int borderval = threshold + 1;
+    int[] save = ringsave;
+    for (int x = x0, i = y0 * w + x0, j = (y1 - 1) * w + x0; x < x1; x++, i++, j++) {
+      if (border) {
+        save[off++] = in[i];
+        save[off++] = in[j];
+        in[i] = borderval;
+        in[j] = borderval;
+      } else {
+        in[i] = save[off++];
+        in[j] = save[off++];
+      }
+    }
+    for (int y = y0 + 1, i = y * w + x0, j = y * w + x1 - 1; y < y1 - 1; y++, i += w, j += w) {
+      if (border) {
+        save[off++] = in[i];
+        save[off++] = in[j];
+        in[i] = borderval;
+        in[j] = borderval;
+      } else {
+        in[i] = save[off++];
+        in[j] = save[off++];
+      }
+    }
+    return off;
   }
   
   ////////////////////////////////////////////////////
   // CODE each 2x2 pixel
   // depends only on whether each of four corners is
   // above or below threshold.
+  //
+  // CODE_ROWS    walks the image in memory order, one
+  //              load per pixel.  the bits of the row
+  //              above are carried in rowbits and a
+  //              cell is assembled from two rows of bits
+  //              by shifts, no branches
+  // CODE_COLUMNS the original column order coder, four
+  //              loads and four compares per cell
+  //
+  // either way a bit is set in mixed for every cell
+  // that is not case 0 or 15, so tracing only looks
+  // at the few cells a contour goes through and skips
+  // the rest 64 at a time.
   ////////////////////////////////////////////////////
-  private void preCodeImage(int[] in) {
+  public static final int CODE_ROWS = 0;
+  public static final int CODE_COLUMNS = 1;
+  int coder = CODE_ROWS;
+  
+  public void setCoder(int coder) {
+    this.coder = coder;
+  }
+  
+  ////////////////////////////////////////////////////
+  // PARALLEL coding: CODE_ROWS split into row strips
+  // on executor, each strip with its own carried bits
+  // and nothing shared but cd.  frames with fewer than
+  // minStripCells cells per strip use fewer strips,
+  // down to plain sequential coding.
+  ////////////////////////////////////////////////////
+  public static final int MIN_STRIP_CELLS = 32 * 1024;
+  int minStripCells = MIN_STRIP_CELLS;
+  StripExecutor executor;
+  int[][] stripbits;
+  long[][] stripwords;
+  int[] codeInput;
+  int codeX0;
+  int codeX1;
+  int codeY0;
+  StripExecutor.Task codeTask = new StripExecutor.Task() {
+    public void run(int strip, int y0, int y1) {
+      codeRows(codeInput, codeX0, codeX1, codeY0 + y0, codeY0 + y1, stripbits[strip], stripwords[2 * strip], stripwords[2 * strip + 1]);
+    }
+  };
+  
+  // null to code on the calling thread only
+  public void setExecutor(StripExecutor executor) {
+    this.executor = executor;
+    if (executor != null && (stripbits == null || stripbits.length < executor.getThreads())) {
+      stripbits = new int[executor.getThreads()][w];
+      stripwords = new long[2 * executor.getThreads()][rowwords + 1];
+    }
+    if (executor != null && executor.getThreads() > 1) allocateBands(executor.getThreads());
+  }
+  
+  public StripExecutor getExecutor() {
+    return executor;
+  }
+  
+  // cells a strip or band needs before it gets a thread of its own,
+  // MIN_STRIP_CELLS by default; 1 always uses every thread
+  public void setMinStripCells(int cells) {
+    minStripCells = Math.max(1, cells);
+  }
+  
+  public int getMinStripCells() {
+    return minStripCells;
+  }
+  
+  public int getCoder() {
+    return coder;
+  }
+  
+  public void preCodeImage(int[] in) {
+    if (coder == CODE_COLUMNS) {
+      preCodeImageColumns(in);
+    } else {
+      preCodeImageRows(in);
+    }
+  }
+  
+  private void preCodeImageRows(int[] in) {
+    codeRect(in, 0, 0, w, h);
+  }
+  
+  // code the cells of pixels x0..x1-1, y0..y1-1, in strips if big enough
+  void codeRect(int[] in, int x0, int y0, int x1, int y1) {
+    StripExecutor ex = executor;
+    int strips = ex == null ? 1 : (y1 - y0 - 1) * (x1 - x0 - 1) / minStripCells;
+    if (strips <= 1) {
+      codeRows(in, x0, x1, y0, y1 - 1, rowbits, rowwords0, rowwords1);
+      return;
+    }
+    codeInput = in;
+    codeX0 = x0;
+    codeX1 = x1;
+    codeY0 = y0;
+    ex.run(codeTask, y1 - y0 - 1, strips);
+    codeInput = null;
+  }
+  
+  // code cell rows y0 to y1 - 1, columns x0 to x1 - 2, carrying pixel row
+  // bits in above.
+  // (v - threshold) >>> 31 is 1 exactly when v < threshold, for depth sized values
+  // the same bits are gathered 64 to a long in up and down (rowwords + 1
+  // each) and give 64 cells of mixed at a time
+  void codeRows(int[] in, int x0, int x1, int y0, int y1, int[] above, long[] up, long[] down) {
+    int t = threshold;
+    byte[] code = cd;
+    long[] m = mixed;
+    int words = rowwords;
+    int j0 = x0 >> 6;
+    int j1 = (x1 - 1) >> 6;						// last word with pixels
+    int jc = (x1 - 2) >> 6;						// last word with cells
+    long first = -1L << x0;
+    long last = -1L >>> (63 - ((x1 - 2) & 63));
+    for (int j = j0, x = x0, i = y0 * w + x0; j <= j1; j++) {
+      long pix = 0;
+      for (int xe = Math.min((j + 1) << 6, x1); x < xe; x++, i++) {
+        int a = (in[i] - t) >>> 31;
+        above[x] = a;
+        pix |= (long)a << x;
+      }
+      up[j] = pix;
+    }
+    for (int y = y0 + 1, row = (y0 + 1) * w; y <= y1; y++, row += w) {
+      int left = (in[row + x0] - t) >>> 31;		// bottom left of the cell
+      int aboveleft = above[x0];				// top left
+      above[x0] = left;
+      long pix = (long)left << x0;
+      for (int j = j0, x = x0 + 1, i = row - w + x0; j <= j1; j++) {
+        for (int xe = Math.min((j + 1) << 6, x1); x < xe; x++, i++) {
+          int b = (in[row + x] - t) >>> 31;		// bottom right
+          int a = above[x];						// top right
+          code[i] = (byte)(aboveleft << 3 | a << 2 | b << 1 | left);
+          pix |= (long)b << x;					// shift is mod 64
+          above[x] = b;
+          aboveleft = a;
+          left = b;
+        }
+        down[j] = pix;
+        pix = 0;
+      }
+      // a cell is mixed where its pixels differ across, down, or across below.
+      // only the bits of cells in the rectangle are written
+      for (int j = j0, k = (y - 1) * words + j0; j <= jc; j++, k++) {
+        long u = up[j];
+        long d = down[j];
+        long bits = (u ^ (u >>> 1 | up[j + 1] << 63)) | (d ^ (d >>> 1 | down[j + 1] << 63)) | (u ^ d);
+        long mask = (j == j0 ? first : -1L) & (j == jc ? last : -1L);
+        m[k] = m[k] & ~mask | bits & mask;
+      }
+      long[] swap = up;
+      up = down;
+      down = swap;
+    }
+  }
+  
+  private void preCodeImageColumns(int[] in) {
 		int b0, b1, b2, b3;
     for (int x = 0; x < w - 1; x++) {
       for (int y = 0; y < h - 1; y++) {
-        b0 = in[ixy(x + 0, y + 0)] < threshold ? 0x00001000 : 0x00000000;
-        b1 = in[ixy(x + 1, y + 0)] < threshold ? 0x00000100 : 0x00000000;
-        b2 = in[ixy(x + 1, y + 1)] < threshold ? 0x00000010 : 0x00000000;
-        b3 = in[ixy(x + 0, y + 1)] < threshold ? 0x00000001 : 0x00000000;
-        cd[ixy(x, y)] = b0 | b1 | b2 | b3;
+        b0 = in[ixy(x + 0, y + 0)] < threshold ? CASE8 : CASE0;
+        b1 = in[ixy(x + 1, y + 0)] < threshold ? CASE4 : CASE0;
+        b2 = in[ixy(x + 1, y + 1)] < threshold ? CASE2 : CASE0;
+        b3 = in[ixy(x + 0, y + 1)] < threshold ? CASE1 : CASE0;
+        cd[ixy(x, y)] = (byte)(b0 | b1 | b2 | b3);
       }
     } 
+    for (int y = 0; y < h - 1; y++) {
+      for (int j = 0; j < rowwords; j++) {
+        long bits = 0;
+        for (int x = j << 6; x < Math.min((j + 1) << 6, w - 1); x++) {
+          int code = cd[ixy(x, y)];
+          if (code != CASE0 && code != CASE15) bits |= 1L << x;
+        }
+        mixed[y * rowwords + j] = bits;
+      }
+    }
+  }
+  
+  // first cell from c on, in raster order, that was coded mixed; -1 if none
+  int nextMixed(int c) {
+    int y = c / w;
+    int x = c - y * w;
+    if (x >= w - 1) {
+      x = 0;
+      y++;
+    }
+    long[] m = mixed;
+    int words = rowwords;
+    int j = y * words + (x >> 6);
+    int end = (h - 1) * words;
+    if (j >= end) return -1;
+    long bits = m[j] & (-1L << x);
+    while (bits == 0) {
+      if (++j >= end) return -1;
+      bits = m[j];
+    }
+    int row = j / words;
+    return row * w + ((j - row * words) << 6) + Long.numberOfTrailingZeros(bits);
   }
 
   ////////////////////////////////////////////////////
@@ -181,7 +540,10 @@ public class FindIsolines {
 		while (i < w * h) {
 			
 			fromedge = toedge;			
-			if (next < 0) next = ++i;
+			if (next < 0) {
+				next = i = nextMixed(i + 1);
+				if (next < 0) break;
+			}
 			x = next % w;
 			y = next / w;
 			if (x >= (w - 1) || y >= (h - 1)) {
@@ -318,30 +680,35 @@ public class FindIsolines {
 			
 			if (fromedge == -1 && toedge > -1) {					// starting a new contour
 				contournum++;
+				if (contournum == cl.length) reserveContours(contournum + 1);
+			}
+			if (toedge > -1 && vi == room && !reservePoints(vi + 1)) {	// over budget, drop this one
+				contournum--;
+				break;
 			}
 			
 			switch (toedge) {			
 				case 0: 
-					cx[vi] = x + t(in[ixy(x + 0, y + 0)], in[ixy(x + 1, y + 0)]);
-					cy[vi++] = (double)y;
+					cx[vi] = (float)(x + t(in[ixy(x + 0, y + 0)], in[ixy(x + 1, y + 0)]));
+					cy[vi++] = y;
 					next = ixy(x + 0, y - 1);
 					cl[contournum] = ++length;			
 					break;
 				case 1:
-					cx[vi] = (double)x + 1;
-					cy[vi++] = y + t(in[ixy(x + 1, y + 0)], in[ixy(x + 1, y + 1)]);
+					cx[vi] = x + 1;
+					cy[vi++] = (float)(y + t(in[ixy(x + 1, y + 0)], in[ixy(x + 1, y + 1)]));
 					next = ixy(x + 1, y + 0);
 					cl[contournum] = ++length;			
 					break;
 				case 2:
-					cx[vi] = x + t(in[ixy(x + 0, y + 1)], in[ixy(x + 1, y + 1)]);
-					cy[vi++] = (double)(y + 1);
+					cx[vi] = (float)(x + t(in[ixy(x + 0, y + 1)], in[ixy(x + 1, y + 1)]));
+					cy[vi++] = y + 1;
 					next = ixy(x, y + 1);
 					cl[contournum] = ++length;			
 					break;
 				case 3:
-					cx[vi] = (double)x;
-					cy[vi++] = y + t(in[ixy(x + 0, y + 0)], in[ixy(x + 0, y + 1)]);
+					cx[vi] = x;
+					cy[vi++] = (float)(y + t(in[ixy(x + 0, y + 0)], in[ixy(x + 0, y + 1)]));
 					next = ixy(x - 1, y + 0);
 					cl[contournum] = ++length;			
 					break;
@@ -365,6 +732,439 @@ public class FindIsolines {
 		return numContours;
 	}
 	
+  ////////////////////////////////////////////////////
+  // BAND-PARALLEL tracing, used by find() when an
+  // executor is set and the frame is big enough.
+  // gives exactly the contours of findIsolines, in
+  // the same order and from the same first point.
+  //
+  // 1. every band of cell rows is traced on its own,
+  //    into scratch: first the chains that enter it
+  //    across a seam, each followed until it leaves
+  //    the band (an open fragment), then what is left,
+  //    which are loops inside the band
+  // 2. fragments are stitched into loops through the
+  //    seams, by the cell and edge each one enters at
+  // 3. findIsolines starts each contour at its first
+  //    cell in raster order, so every loop is rotated
+  //    to start there and the loops are sorted by it
+  //
+  // saddle cells are resolved by the edge they are
+  // entered from, which is what findIsolines does
+  // too, whatever order they are reached in.  the one
+  // place the order shows is a saddle that is the first
+  // cell of both loops through it: findIsolines starts
+  // there, and when it gets back it carries on through
+  // the other half, so the two loops come out as one
+  // contour.  step 3 joins such pairs the same way.
+  ////////////////////////////////////////////////////
+  
+  // for each case: edge left by a non-saddle cell, and the fromedge it is entered with
+  static final int[] EXIT = { -1, 2, 1, 1, 0, -1, 0, 0, 3, 2, -1, 1, 3, 2, 3, -1 };
+  static final int[] ENTRY = new int[16];
+  static {
+    for (int k = 0; k < 16; k++) {
+      boolean tl = (k & 8) != 0, tr = (k & 4) != 0, br = (k & 2) != 0, bl = (k & 1) != 0;
+      ENTRY[k] = -1;
+      for (int e = 0; e < 4; e++) {
+        boolean crossed = e == 0 ? tl != tr : e == 1 ? tr != br : e == 2 ? bl != br : tl != bl;
+        if (crossed && e != EXIT[k]) ENTRY[k] = (e + 2) & 3;
+      }
+    }
+  }
+  
+  // scratch of the band tracer, sized by sizeBands for the mixed cells of
+  // the frame and grown by doubling, like the ContourStore
+  float[] bx;					// points
+  float[] by;
+  int[] bk;						// cell << 2 | edge of each point
+  int[] pstart;					// pieces: first point, length
+  int[] plen;
+  int[] ptail;					// seam slot a fragment leaves through (2 * slot, +1 up), -1 for a loop
+  int[] pmin;					// first cell in raster order and where it is in the piece
+  int[] pminpos;
+  int[] pminpos2;				// a saddle can be there twice, else -1
+  int[] pcount;					// pieces per band
+  int[] vbase;					// first point and first piece of each band
+  int[] qbase;
+  int[] seamdown;				// fragment entering the top row of band b at column x, b * w + x
+  int[] seamup;					// same through the bottom row
+  int[] pcycle;
+  long[] order;
+  int[] cyclepiece;				// per loop: first cell, and the piece and position it starts at
+  int[] cyclepos;
+  int[] cyclepiece2;
+  int[] cyclepos2;
+  int[] cyclelen;				// points in each loop
+  int traceBands;
+  int[] traceInput;
+  StripExecutor.Task traceTask = new StripExecutor.Task() {
+    public void run(int band, int y0, int y1) {
+      traceBand(traceInput, band, y0, y1);
+    }
+  };
+  
+  // per band tables for up to threads bands; the point and piece scratch
+  // waits for the first frame traced in bands
+  void allocateBands(int threads) {
+    if (pcount != null && pcount.length >= threads) return;
+    pcount = new int[threads];
+    vbase = new int[threads];
+    qbase = new int[threads];
+    seamdown = new int[threads * w];
+    seamup = new int[threads * w];
+  }
+  
+  // where each band's points and pieces go.  a mixed cell gives at most 2
+  // points (a saddle), every piece has a point, and a loop at least 2, so
+  // a band has no more pieces than its mixed cells plus the chains that
+  // come in across its seams, one per mixed cell of its edge rows
+  void sizeBands(int bands) {
+    int points = 0;
+    int pieces = 0;
+    for (int b = 0; b < bands; b++) {
+      int y0 = (h - 1) * b / bands;
+      int y1 = (h - 1) * (b + 1) / bands;
+      int m = 0;
+      for (int j = y0 * rowwords; j < y1 * rowwords; j++) {
+        m += Long.bitCount(mixed[j]);
+      }
+      int edge = 0;
+      for (int j = 0; j < rowwords; j++) {
+        if (y0 > 0) edge += Long.bitCount(mixed[y0 * rowwords + j]);
+        if (y1 < h - 1) edge += Long.bitCount(mixed[(y1 - 1) * rowwords + j]);
+      }
+      vbase[b] = points;
+      qbase[b] = pieces;
+      points += 2 * m;
+      pieces += m + edge;
+    }
+    reserveBands(points, pieces + 1);
+  }
+  
+  void reserveBands(int points, int pieces) {
+    if (bx == null || bx.length < points) {
+      int capacity = Math.max(bx == null ? ContourStore.POINTS : 2 * bx.length, points);
+      bx = new float[capacity];
+      by = new float[capacity];
+      bk = new int[capacity];
+    }
+    if (pstart == null || pstart.length < pieces) {
+      int capacity = Math.max(pstart == null ? ContourStore.CONTOURS : 2 * pstart.length, pieces);
+      pstart = new int[capacity];
+      plen = new int[capacity];
+      ptail = new int[capacity];
+      pmin = new int[capacity];
+      pminpos = new int[capacity];
+      pminpos2 = new int[capacity];
+      pcycle = new int[capacity];
+      order = new long[capacity];
+      cyclepiece = new int[capacity];
+      cyclepos = new int[capacity];
+      cyclepiece2 = new int[capacity];
+      cyclepos2 = new int[capacity];
+      cyclelen = new int[capacity];
+    }
+  }
+  
+  // bands find() would trace that many coded cells in, 1 for findIsolines
+  int traceBands(int cells) {
+    StripExecutor ex = executor;
+    if (ex == null) return 1;
+    int bands = Math.min(Math.min(ex.getThreads(), cells / minStripCells), h - 1);
+    return Math.max(bands, 1);
+  }
+  
+  private int findIsolinesBands(int[] in, int bands) {
+    sizeBands(bands);
+    traceBands = bands;
+    traceInput = in;
+    executor.run(traceTask, h - 1, bands);
+    traceInput = null;
+    
+    ////////////////////////////////////////////////////
+    // STITCH pieces into loops and find where each
+    // loop starts
+    ////////////////////////////////////////////////////
+    int numcycles = 0;
+    for (int b = 0; b < bands; b++) {
+      int base = qbase[b];
+      for (int q = base; q < base + pcount[b]; q++) pcycle[q] = -1;
+    }
+    for (int b = 0; b < bands; b++) {
+      int base = qbase[b];
+      for (int q = base; q < base + pcount[b]; q++) {
+        if (pcycle[q] >= 0) continue;
+        int id = numcycles++;
+        int first = Integer.MAX_VALUE;
+        int p = q;
+        cyclelen[id] = 0;
+        do {
+          pcycle[p] = id;
+          cyclelen[id] += plen[p];
+          if (pmin[p] < first) {
+            first = pmin[p];
+            cyclepiece[id] = p;
+            cyclepos[id] = pminpos[p];
+            cyclepiece2[id] = pminpos2[p] >= 0 ? p : -1;
+            cyclepos2[id] = pminpos2[p];
+          } else if (pmin[p] == first) {
+            cyclepiece2[id] = p;				// the saddle's other half is in this piece
+            cyclepos2[id] = pminpos[p];
+          }
+          p = nextPiece(p);
+        } while (p != q && p >= 0 && pcycle[p] < 0);
+        order[id] = (long)first << 32 | id;
+      }
+    }
+    Arrays.sort(order, 0, numcycles);
+    
+    ////////////////////////////////////////////////////
+    // EMIT loops in order of their first cell, each from
+    // the point findIsolines would have started with
+    ////////////////////////////////////////////////////
+    int contournum = 0;
+    int vi = 0;
+    for (int j = 0; j < numcycles; j++) {
+      int id = (int)order[j];
+      int cell = (int)(order[j] >>> 32);
+      int seedkey = cell << 2 | seedExit(in, cell);
+      int pair = j + 1 < numcycles && (int)(order[j + 1] >>> 32) == cell ? (int)order[j + 1] : -1;
+      int points = cyclelen[id] + (pair >= 0 ? cyclelen[pair] : 0);
+      if (vi + points > room && !reservePoints(vi + points)) break;		// over budget, like findIsolines
+      if (contournum == cl.length) reserveContours(contournum + 1);
+      co[contournum] = vi;
+      if (pair >= 0) {
+        // two loops through a saddle they both start at
+        int other = pair;
+        if (bk[pstart[cyclepiece[pair]] + cyclepos[pair]] == seedkey) {
+          other = id;
+          id = pair;
+        }
+        vi = emitCycle(id, cyclepiece[id], cyclepos[id], vi);
+        vi = emitCycle(other, cyclepiece[other], cyclepos[other], vi);
+        j++;
+      } else if (cyclepiece2[id] >= 0 && bk[pstart[cyclepiece2[id]] + cyclepos2[id]] == seedkey) {
+        vi = emitCycle(id, cyclepiece2[id], cyclepos2[id], vi);
+      } else {
+        vi = emitCycle(id, cyclepiece[id], cyclepos[id], vi);
+      }
+      cl[contournum] = vi - co[contournum];
+      contournum++;
+    }
+    numContours = contournum;
+    
+    computeBoundingBoxes();
+    
+    return numContours;
+  }
+  
+  // piece that follows p in its loop
+  int nextPiece(int p) {
+    int tail = ptail[p];
+    if (tail < 0) return p;
+    return (tail & 1) == 0 ? seamdown[tail >> 1] : seamup[tail >> 1];
+  }
+  
+  // copy the loop of piece p into cx, cy from point pos of p on
+  int emitCycle(int id, int p, int pos, int vi) {
+    int q = p;
+    int from = pos;
+    do {
+      int s = pstart[q];
+      for (int i = s + from; i < s + plen[q]; i++) {
+        cx[vi] = bx[i];
+        cy[vi++] = by[i];
+      }
+      from = 0;
+      q = nextPiece(q);
+    } while (q != p && q >= 0);
+    int s = pstart[p];
+    for (int i = s; i < s + pos; i++) {
+      cx[vi] = bx[i];
+      cy[vi++] = by[i];
+    }
+    return vi;
+  }
+  
+  // edge findIsolines leaves cell c by when it starts a contour there
+  int seedExit(int[] in, int c) {
+    int k = pixelCase(in, c);
+    if (k == 5) return avg(in, c) > threshold ? 0 : 2;
+    if (k == 10) return 1;
+    return EXIT[k];
+  }
+  
+  // case of cell c from the pixels, whatever cd holds
+  int pixelCase(int[] in, int c) {
+    return (in[c] < threshold ? 8 : 0) | (in[c + 1] < threshold ? 4 : 0) | (in[c + 1 + w] < threshold ? 2 : 0) | (in[c + w] < threshold ? 1 : 0);
+  }
+  
+  double avg(int[] in, int c) {
+    return 0.25 * (double)(in[c] + in[c + 1] + in[c + w] + in[c + w + 1]);
+  }
+  
+  ////////////////////////////////////////////////////
+  // TRACE one band: cell rows y0 to y1 - 1
+  ////////////////////////////////////////////////////
+  void traceBand(int[] in, int band, int y0, int y1) {
+    int vi = vbase[band];
+    int q = qbase[band];
+    int q0 = q;
+    // chains coming in across the seams, at mixed cells of the edge rows
+    for (int j = 0; y0 > 0 && j < rowwords; j++) {
+      for (long bits = mixed[y0 * rowwords + j]; bits != 0; bits &= bits - 1) {
+        int x = (j << 6) + Long.numberOfTrailingZeros(bits);
+        int c = y0 * w + x;
+        if (enters(in, c, 2)) {
+          seamdown[band * w + x] = q;
+          vi = trace(in, c, 2, y0, y1, -1, band, q++, vi);
+        }
+      }
+    }
+    for (int j = 0; y1 < h - 1 && j < rowwords; j++) {
+      for (long bits = mixed[(y1 - 1) * rowwords + j]; bits != 0; bits &= bits - 1) {
+        int x = (j << 6) + Long.numberOfTrailingZeros(bits);
+        int c = (y1 - 1) * w + x;
+        if (enters(in, c, 0)) {
+          seamup[band * w + x] = q;
+          vi = trace(in, c, 0, y0, y1, -1, band, q++, vi);
+        }
+      }
+    }
+    // loops inside the band, seeded from the mixed cells only
+    for (int j = y0 * rowwords; j < y1 * rowwords; j++) {
+      int row = j / rowwords;
+      for (long bits = mixed[j]; bits != 0; bits &= bits - 1) {
+        int c = row * w + ((j - row * rowwords) << 6) + Long.numberOfTrailingZeros(bits);
+        int k;
+        while ((k = cd[c]) != 0 && k != 15) {
+          int entry = entry(in, c, k);
+          if (k == 5) entry = 1;
+          if (k == 10) entry = avg(in, c) > threshold ? 2 : 0;
+          vi = trace(in, c, entry, y0, y1, c, band, q++, vi);
+        }
+      }
+    }
+    pcount[band] = q - q0;
+  }
+  
+  // can cell c be entered with fromedge from
+  boolean enters(int[] in, int c, int from) {
+    int k = cd[c];
+    if (k == 5) return from == 1 || from == 3;
+    if (k == 10) return from == 0 || from == 2;
+    return k != 0 && k != 15 && entry(in, c, k) == from;
+  }
+  
+  // fromedge of the chain still through cell c, whose code has case k.
+  // the code left in half a saddle only keeps the right exit, so there
+  // the entry goes by what leave() did with the other half
+  int entry(int[] in, int c, int k) {
+    int p = pixelCase(in, c);
+    if (p == 5 && k != 5) {
+      if (avg(in, c) > threshold) return EXIT[k] == 2 ? 3 : 1;
+      return EXIT[k] == 0 ? 3 : 1;
+    }
+    if (p == 10 && k != 10) {
+      if (avg(in, c) > threshold) return EXIT[k] == 3 ? 0 : 2;
+      return EXIT[k] == 3 ? 2 : 0;
+    }
+    return ENTRY[k];
+  }
+  
+  // follow a chain entering cell c with fromedge from, into piece q.  a loop
+  // (seed >= 0) ends back at the seed entered the same way, a fragment where
+  // it leaves rows y0 to y1 - 1.
+  int trace(int[] in, int c, int from, int y0, int y1, int seed, int band, int q, int vi) {
+    int start = vi;
+    int seedfrom = from;
+    int min = Integer.MAX_VALUE;
+    int minpos = -1;
+    int minpos2 = -1;
+    ptail[q] = -1;
+    while (true) {
+      int x = c % w;
+      int y = c / w;
+      int to = leave(in, c, from);
+      if (to < 0) break;
+      if (c < min && c > 0) {				// findIsolines never starts at cell 0
+        min = c;
+        minpos = vi - start;
+        minpos2 = -1;
+      } else if (c == min) {
+        minpos2 = vi - start;
+      }
+      bk[vi] = c << 2 | to;
+      switch (to) {
+        case 0:
+          bx[vi] = (float)(x + t(in[c], in[c + 1]));
+          by[vi++] = y;
+          c -= w;
+          break;
+        case 1:
+          bx[vi] = x + 1;
+          by[vi++] = (float)(y + t(in[c + 1], in[c + 1 + w]));
+          c += 1;
+          break;
+        case 2:
+          bx[vi] = (float)(x + t(in[c + w], in[c + w + 1]));
+          by[vi++] = y + 1;
+          c += w;
+          break;
+        default:
+          bx[vi] = x;
+          by[vi++] = (float)(y + t(in[c], in[c + w]));
+          c -= 1;
+          break;
+      }
+      from = to;
+      if (seed >= 0) {
+        if (c == seed && from == seedfrom) break;
+      } else if (c < y0 * w || c >= y1 * w) {
+        int slot = to == 2 ? (band + 1) * w + c % w : (band - 1) * w + c % w;
+        ptail[q] = to == 2 ? 2 * slot : 2 * slot + 1;
+        break;
+      }
+    }
+    pstart[q] = start;
+    plen[q] = vi - start;
+    pmin[q] = min;
+    pminpos[q] = minpos;
+    pminpos2[q] = minpos2;
+    return vi;
+  }
+  
+  // edge the chain leaves cell c by when it came in with fromedge from,
+  // updating cd like findIsolines does; -1 if there is nothing left there
+  int leave(int[] in, int c, int from) {
+    int code = cd[c];
+    int k = code;
+    if (k == 5) {
+      if (avg(in, c) > threshold) {
+        if (from == 3) { cd[c] = CASE4; return 2; }
+        cd[c] = CASE1;
+        return 0;
+      }
+      if (from == 3) { cd[c] = CASE13; return 0; }
+      cd[c] = CASE7;
+      return 2;
+    }
+    if (k == 10) {
+      if (avg(in, c) > threshold) {
+        if (from == 0) { cd[c] = CASE2; return 3; }
+        cd[c] = CASE8;
+        return 1;
+      }
+      if (from == 2) { cd[c] = CASE11; return 3; }
+      cd[c] = CASE14;
+      return 1;
+    }
+    if (k == 0 || k == 15) return -1;
+    cd[c] = 0;
+    return EXIT[k];
+  }
+  
   ////////////////////////////////////////////////////
   // LERP between to values
   ////////////////////////////////////////////////////    
@@ -398,12 +1198,12 @@ public class FindIsolines {
 	
 	public void setContourX(int contour, int v, double x) {	
 		int o = co[contour];
-		cx[wrap(o + v, o, o + cl[contour])] = x;
+		cx[wrap(o + v, o, o + cl[contour])] = (float)x;
 	}
 	
 	public void setContourY(int contour, int v, double y) {	
 		int o = co[contour];
-		cy[wrap(o + v, o, o + cl[contour])] = y;
+		cy[wrap(o + v, o, o + cl[contour])] = (float)y;
 	}
   
   
@@ -650,8 +1450,8 @@ public class FindIsolines {
   
   
 	public void meltContours() {
-		double[] tx = vx;
-		double[] ty = vy;
+		float[] tx = vx;
+		float[] ty = vy;
     
 		for (int k = 0; k < numContours; k++) {
 			int o = co[k];
@@ -661,8 +1461,8 @@ public class FindIsolines {
 				int v0 = wrap(o + i - 1, o, o + l);
 				int v1 = wrap(o + i, o, o + l);
 				int v2 = wrap(o + i + 1, o, o + l);
-				vx[v1] = (cx[v0] + cx[v1] + cx[v2]) / 3.0;
-				vy[v1] = (cy[v0] + cy[v1] + cy[v2]) / 3.0;
+				vx[v1] = (float)((cx[v0] + cx[v1] + cx[v2]) / 3.0);
+				vy[v1] = (float)((cy[v0] + cy[v1] + cy[v2]) / 3.0);
 			}
 		}
 		System.arraycopy(vx, 0, cx, 0, getLastIndex());
@@ -31,6 +31,9 @@
 ////////////////////////////////////////////////////////////////////////////////
 package imageprocessor;
 
+import kinectdigitizer.FrameSource;
+import kinectdigitizer.FrameStamp;
+
 import java.awt.*;
 import java.util.Arrays;
 
@@ -40,7 +43,10 @@ public class FingerTracker {
 	public FindIsolines fc;
 	int w;
 	int h;
+	int fullw;
+	int fullh;
 	int numfingers;
+	static final int FINGERS = 16;				// room for tips to start with, doubled as needed
 	int[] tmp;
 	int meltFactor = 20;
 	double[] screenx;
@@ -48,41 +54,271 @@ public class FingerTracker {
 	double[] normalx;
 	double[] normaly;
 	int[] contour;
+	int[] fingerdepth;							// robust raw depth per tip, 2047 if none
+	double[] worldx;							// tip in world space, NaN without depth
+	double[] worldy;
+	double[] worldz;
+	double[] displayx;							// tip on the calibrated screen, NaN if unmapped
+	double[] displayy;
+	WorldProjector projector;
+	ScreenCalibration calibration;				// null if uncalibrated
+	double[] display = new double[2];
+	int threshold = 128;
+	int depthRadius = 2;						// tip depth is sampled over (2r+1)^2 pixels
+	int[] window = new int[(2 * 2 + 1) * (2 * 2 + 1)];
+	double[] xyz = new double[3];
 	boolean printVerbose = true;
+	int level = 0;								// pyramid level tracked on
+	int scale = 1;								// 1 << level
+	DepthPyramid pyramid;						// only used when level > 0
+	BackgroundModel background;					// null unless background subtraction is on
+	int[] masked;								// foreground of the frame, with background
+	int foreground;								// foreground pixels in the last frame
+	FrameStamp stamp = new FrameStamp();		// frame the current results came from
+	boolean useRegions = false;					// search around last frame's contours only
+	int regionPad = 24;							// full resolution pixels a hand moves per frame
+	int fullScanInterval = 15;					// frames between whole frame searches
+	int sinceFullScan = 0;
+	int[] regions = new int[4 * 16];			// x0, y0, x1, y1 at the tracked level
+	int numRegions = 0;
+	long trackedNanos;							// System.nanoTime() when update finished
 	double FINGER_RADIUS = 15.0;				// perimeter of a fingertip
 	double ROUNDNESS_THRESHOLD = -1.33;			// minimum allowable value for 
                                           // ratio of area / perimeter of fingertip
   
 	public FingerTracker(int w, int h) {
-		this.w = w;
-		this.h = h;
+		this(w, h, 0);
+	}
+  
+  ////////////////////////////////////////////////////
+  // Track on pyramid level `level` of a w x h depth
+  // image: contours are found at (w >> level) x
+  // (h >> level), fingertips are reported in full
+  // resolution coordinates.
+  ////////////////////////////////////////////////////
+	public FingerTracker(int fullw, int fullh, int level) {
+		this.level = level;
+		this.fullw = fullw;
+		this.fullh = fullh;
+		scale = 1 << level;
+		w = fullw >> level;
+		h = fullh >> level;
+		FINGER_RADIUS = FINGER_RADIUS / scale;
+		ROUNDNESS_THRESHOLD = ROUNDNESS_THRESHOLD / scale;		// area / perimeter is a length
+		meltFactor = Math.max(1, meltFactor >> (2 * level));	// melting is diffusion, ~ length squared
+		if (level > 0) pyramid = new DepthPyramid(fullw, fullh, level + 1);
 		ip = new ImageProcessor(w, h);
 		fc = new FindIsolines(w, h);
 		setThreshold(128);
 		
-		screenx = new double[w * h];
-		screeny = new double[w * h];
-		normalx = new double[w * h];
-		normaly = new double[w * h];
-		contour = new int[w * h];
+		screenx = new double[FINGERS];
+		screeny = new double[FINGERS];
+		normalx = new double[FINGERS];
+		normaly = new double[FINGERS];
+		contour = new int[FINGERS];
+		fingerdepth = new int[FINGERS];
+		worldx = new double[FINGERS];
+		worldy = new double[FINGERS];
+		worldz = new double[FINGERS];
+		displayx = new double[FINGERS];
+		displayy = new double[FINGERS];
 		tmp = new int[w * h];
 		
 	}
   
+  ////////////////////////////////////////////////////
+  // BACKGROUND SUBTRACTION: only pixels in front of
+  // the learned background are contoured
+  ////////////////////////////////////////////////////
+  public void setBackgroundSubtraction(boolean on) {
+    if (on && background == null) {
+      background = new BackgroundModel(w, h);
+      masked = new int[w * h];
+    } else if (!on) {
+      background = null;
+      masked = null;
+    }
+  }
+  
+  public BackgroundModel getBackgroundModel() {
+    return background;
+  }
+  
+  ////////////////////////////////////////////////////
+  // REGIONS: contours are searched for only in the
+  // boxes of last frame's contours grown by pad (full
+  // resolution pixels), so the work goes with the size
+  // of the hands.  the whole frame is searched every
+  // interval frames, and whenever nothing was found,
+  // to pick up hands that come into view.
+  ////////////////////////////////////////////////////
+  public void setRegionTracking(boolean on) {
+    useRegions = on;
+    numRegions = 0;
+  }
+  
+  public boolean getRegionTracking() {
+    return useRegions;
+  }
+  
+  public void setRegionPad(int pad) {
+    regionPad = pad;
+  }
+  
+  public void setFullScanInterval(int frames) {
+    fullScanInterval = frames;
+  }
+  
+  // boxes of the contours just found, for the next frame
+  void setRegions(int numcontours) {
+    int pad = (regionPad + scale - 1) / scale;
+    if (regions.length < 4 * numcontours) regions = new int[4 * numcontours];
+    for (int k = 0; k < numcontours; k++) {
+      regions[4 * k] = (int)fc.minx[k] - pad;
+      regions[4 * k + 1] = (int)fc.miny[k] - pad;
+      regions[4 * k + 2] = (int)fc.maxx[k] + 2 + pad;
+      regions[4 * k + 3] = (int)fc.maxy[k] + 2 + pad;
+    }
+    numRegions = numcontours;
+  }
+  
+  // seed the background from a full resolution reference frame
+  public void setBackground(int[] full) {
+    setBackgroundSubtraction(true);
+    if (level == 0) {
+      background.setBackground(full);
+    } else {
+      pyramid.build(full, -1);
+      background.setBackground(pyramid.getLevel(level));
+    }
+  }
+  
+  public int getForegroundCount() {
+    return foreground;
+  }
+  
   public void setThreshold(int value) {
+    threshold = value;
     fc.setThreshold(value);
   }
   
+  ////////////////////////////////////////////////////
+  // WORLD coordinates of tips come from this camera
+  // model, null to skip them
+  ////////////////////////////////////////////////////
+  public void setProjector(WorldProjector p) {
+    projector = p;
+  }
+  
+  ////////////////////////////////////////////////////
+  // SCREEN coordinates of tips come from this
+  // calibration, null to skip them
+  ////////////////////////////////////////////////////
+  public void setCalibration(ScreenCalibration c) {
+    calibration = c;
+  }
+  
+  public ScreenCalibration getCalibration() {
+    return calibration;
+  }
+  
+  ////////////////////////////////////////////////////
+  // PARALLEL contour coding on executor, null for
+  // the calling thread only
+  ////////////////////////////////////////////////////
+  public void setExecutor(StripExecutor executor) {
+    fc.setExecutor(executor);
+  }
+  
+  public void setDepthRadius(int r) {
+    depthRadius = r;
+    window = new int[(2 * r + 1) * (2 * r + 1)];
+  }
+  
 	public void setMeltFactor(int value) {
     meltFactor = value;
 	}
   
+  ////////////////////////////////////////////////////
+  // UPDATE from the newest frame of a source
+  // returns the sequence number of the frame used
+  ////////////////////////////////////////////////////
+	public long update(FrameSource source) {
+    if (level == 0) {
+      source.getDepthFrame(tmp, stamp);
+      update(tmp);
+    } else {
+      int[] full = source.getDepthFrame();
+      source.getDepthFrameStamp(stamp);
+      update(full, stamp.sequence);
+    }
+    trackedNanos = System.nanoTime();
+    return stamp.sequence;
+	}
+  
+  ////////////////////////////////////////////////////
+  // UPDATE from pix, remembering which frame it was
+  ////////////////////////////////////////////////////
+	public void update(int[] pix, FrameStamp frame) {
+    stamp.set(frame);
+    if (level == 0) {
+      update(pix);
+    } else {
+      update(pix, frame.sequence);
+    }
+    trackedNanos = System.nanoTime();
+	}
+  
+  ////////////////////////////////////////////////////
+  // UPDATE from a full resolution frame, downsampling
+  // to the tracked level first.  full is not modified.
+  ////////////////////////////////////////////////////
+	public void update(int[] full, long sequence) {
+    if (level == 0) {
+      System.arraycopy(full, 0, tmp, 0, w * h);
+    } else {
+      pyramid.build(full, sequence);
+      System.arraycopy(pyramid.getLevel(level), 0, tmp, 0, w * h);
+    }
+    track(tmp, full, 1);
+	}
+  
+  ////////////////////////////////////////////////////
+  // UPDATE from an image at the tracked level
+  ////////////////////////////////////////////////////
 	public void update(int[] pix) {
+    track(pix, pix, scale);
+  }
+  
+  ////////////////////////////////////////////////////
+  // TRACK pix (tracked level), sampling tip depth
+  // from depth, which is full resolution divided by
+  // depthScale.  neither array is modified.
+  ////////////////////////////////////////////////////
+	void track(int[] pix, int[] depth, int depthScale) {
+
+    ////////////////////////////////////////////////////
+    // MASK out the background (pix is kept)
+    ////////////////////////////////////////////////////
+    if (background != null) {
+      foreground = background.segment(pix, masked);
+      pix = masked;
+    } else {
+      foreground = w * h;
+    }
 
     ////////////////////////////////////////////////////
     // FIND contours in pix
     ////////////////////////////////////////////////////
-		int numcontours = fc.find(pix);
+		int numcontours;
+    if (useRegions && numRegions > 0 && sinceFullScan < fullScanInterval) {
+      numcontours = fc.find(pix, regions, numRegions);
+      sinceFullScan++;
+    } else {
+      numcontours = fc.find(pix);
+      sinceFullScan = 0;
+    }
+    if (useRegions) setRegions(numcontours);
     
     ////////////////////////////////////////////////////
     // MELT Contours
@@ -127,11 +363,14 @@ public class FingerTracker {
                 cx += fc.getContourX(k,j);
                 cy += fc.getContourY(k,j);
               }
-              cx = cx / (2 * window + 1);
-              cy = cy / (2 * window + 1);
+              cx = scale * cx / (2 * window + 1);
+              cy = scale * cy / (2 * window + 1);
+              if (numfingers == screenx.length) growFingers();
               screenx[numfingers] = cx;
               screeny[numfingers] = cy;
               contour[numfingers] = k;              
+              measureTip(numfingers, depth, depthScale);
+              mapTip(numfingers);
               numfingers++;
             }
             
@@ -142,6 +381,68 @@ public class FingerTracker {
     }
   }
   
+  void growFingers() {
+    int n = 2 * screenx.length;
+    screenx = Arrays.copyOf(screenx, n);
+    screeny = Arrays.copyOf(screeny, n);
+    normalx = Arrays.copyOf(normalx, n);
+    normaly = Arrays.copyOf(normaly, n);
+    contour = Arrays.copyOf(contour, n);
+    fingerdepth = Arrays.copyOf(fingerdepth, n);
+    worldx = Arrays.copyOf(worldx, n);
+    worldy = Arrays.copyOf(worldy, n);
+    worldz = Arrays.copyOf(worldz, n);
+    displayx = Arrays.copyOf(displayx, n);
+    displayy = Arrays.copyOf(displayy, n);
+  }
+  
+  ////////////////////////////////////////////////////
+  // DEPTH of tip i: median of the samples in front of
+  // the threshold around it, then its world point
+  ////////////////////////////////////////////////////
+  void measureTip(int i, int[] depth, int depthScale) {
+    int dw = fullw / depthScale;
+    int dh = fullh / depthScale;
+    int x = (int)(screenx[i] / depthScale);
+    int y = (int)(screeny[i] / depthScale);
+    int r = depthRadius;
+    int n = 0;
+    for (int v = Math.max(0, y - r); v <= Math.min(dh - 1, y + r); v++) {
+      for (int u = Math.max(0, x - r); u <= Math.min(dw - 1, x + r); u++) {
+        int d = depth[v * dw + u];
+        if (d < threshold) window[n++] = d;
+      }
+    }
+    if (n == 0) {
+      fingerdepth[i] = 2047;
+      worldx[i] = worldy[i] = worldz[i] = Double.NaN;
+      return;
+    }
+    Arrays.sort(window, 0, n);
+    fingerdepth[i] = window[(n - 1) >> 1];
+    if (projector != null) {
+      projector.toWorld(screenx[i], screeny[i], fingerdepth[i], xyz);
+      worldx[i] = xyz[0];
+      worldy[i] = xyz[1];
+      worldz[i] = xyz[2];
+    } else {
+      worldx[i] = worldy[i] = worldz[i] = Double.NaN;
+    }
+  }
+  
+  ////////////////////////////////////////////////////
+  // SCREEN position of tip i through the calibration
+  ////////////////////////////////////////////////////
+  void mapTip(int i) {
+    ScreenCalibration c = calibration;
+    if (c != null && c.toScreen(screenx[i], screeny[i], worldx[i], worldy[i], worldz[i], display)) {
+      displayx[i] = display[0];
+      displayy[i] = display[1];
+    } else {
+      displayx[i] = displayy[i] = Double.NaN;
+    }
+  }
+  
   public double getFingerX(int i) {
     return screenx[i];
   }
@@ -150,6 +451,51 @@ public class FingerTracker {
     return screeny[i];
   }
     
+  // raw depth at tip i, 2047 if nothing in front of the threshold was near it
+  public int getFingerDepth(int i) {
+    return fingerdepth[i];
+  }
+  
+  // world coordinates of tip i (cm with a Kinect model), NaN if unknown
+  public double getFingerWorldX(int i) {
+    return worldx[i];
+  }
+  
+  public double getFingerWorldY(int i) {
+    return worldy[i];
+  }
+  
+  public double getFingerWorldZ(int i) {
+    return worldz[i];
+  }
+  
+  // tip i on the calibrated screen, NaN without a calibration that maps it
+  public double getFingerDisplayX(int i) {
+    return displayx[i];
+  }
+  
+  public double getFingerDisplayY(int i) {
+    return displayy[i];
+  }
+  
+  // frame the current fingertips were computed from
+  public FrameStamp getFrameStamp() {
+    return stamp;
+  }
+  
+  public long getTrackedNanos() {
+    return trackedNanos;
+  }
+  
+  public int getLevel() {
+    return level;
+  }
+  
+  // contour coordinates are in level pixels, multiply by this for full resolution
+  public int getScale() {
+    return scale;
+  }
+  
   public int getContour(int i) {
     return contour[i];
   }
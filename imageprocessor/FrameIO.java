@@ -0,0 +1,179 @@
+package imageprocessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ Binary persistence for int frames (reference depth images, masks)
+ and double matrices (calibrations).  One header, one raw payload,
+ read and written through NIO channels, checksummed so a damaged
+ file is rejected instead of half loaded.
+
+ FILE LAYOUT (little-endian)
+   int   magic           'KFIO'
+   int   version
+   int   type            TYPE_INT or TYPE_DOUBLE
+   int   rows
+   int   cols
+   int   crc32           of the payload bytes
+   long  payload bytes
+   rows * cols samples, row-major (int32 or float64)
+
+ Frames are stored as one row.
+*/
+public class FrameIO {
+
+	public static final int MAGIC = 0x4B46494F;		// 'KFIO'
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int TYPE_INT = 1;
+	public static final int TYPE_DOUBLE = 2;
+
+  ////////////////////////////////////////////////////
+  // INT FRAMES
+  ////////////////////////////////////////////////////
+	public static void writeInts(String filename, int[] buf) throws IOException {
+		ByteBuffer b = allocate(TYPE_INT, 1, buf.length, 4);
+		b.asIntBuffer().put(buf);
+		write(filename, b);
+	}
+
+	// read a frame into dst, which must have exactly the stored length
+	public static void readInts(String filename, int[] dst, boolean map) throws IOException {
+		ByteBuffer b = read(filename, TYPE_INT, map);
+		int n = b.remaining() / 4;
+		if (n != dst.length) throw new IOException(filename + " holds " + n + " values, expected " + dst.length);
+		b.asIntBuffer().get(dst);
+	}
+
+	public static int[] readInts(String filename, boolean map) throws IOException {
+		ByteBuffer b = read(filename, TYPE_INT, map);
+		int[] dst = new int[b.remaining() / 4];
+		b.asIntBuffer().get(dst);
+		return dst;
+	}
+
+	public static int[] readInts(String filename) throws IOException {
+		return readInts(filename, false);
+	}
+
+  ////////////////////////////////////////////////////
+  // DOUBLE MATRICES
+  ////////////////////////////////////////////////////
+	public static void writeMatrix(String filename, double[][] mat) throws IOException {
+		int rows = mat.length;
+		int cols = rows > 0 ? mat[0].length : 0;
+		ByteBuffer b = allocate(TYPE_DOUBLE, rows, cols, 8);
+		for (int i = 0; i < rows; i++) {
+			if (mat[i].length != cols) throw new IllegalArgumentException("matrix rows differ in length");
+			b.asDoubleBuffer().put(mat[i]);
+			b.position(b.position() + 8 * cols);
+		}
+		b.rewind();
+		write(filename, b);
+	}
+
+	public static double[][] readMatrix(String filename) throws IOException {
+		ByteBuffer b = read(filename, TYPE_DOUBLE, false);
+		int rows = b.getInt(12);
+		int cols = b.getInt(16);
+		double[][] mat = new double[rows][cols];
+		for (int i = 0; i < rows; i++) {
+			b.asDoubleBuffer().get(mat[i]);
+			b.position(b.position() + 8 * cols);
+		}
+		return mat;
+	}
+
+  ////////////////////////////////////////////////////
+  // CHANNEL I/O
+  ////////////////////////////////////////////////////
+
+	// header followed by room for rows * cols samples, positioned at the payload
+	static ByteBuffer allocate(int type, int rows, int cols, int sampleSize) {
+		long payload = (long)rows * cols * sampleSize;
+		if (payload > Integer.MAX_VALUE - HEADER_SIZE) throw new IllegalArgumentException("too large to store");
+		ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + (int)payload).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.putInt(type);
+		b.putInt(rows);
+		b.putInt(cols);
+		b.putInt(0);				// crc, filled in by write
+		b.putLong(payload);
+		return b;
+	}
+
+	static void write(String filename, ByteBuffer b) throws IOException {
+		b.position(HEADER_SIZE);
+		b.putInt(20, crc(b));
+		b.rewind();
+		FileChannel channel = new FileOutputStream(filename, false).getChannel();
+		try {
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	// whole file, checked against its header, positioned at the payload.
+	// header fields stay readable at their absolute offsets.
+	static ByteBuffer read(String filename, int type, boolean map) throws IOException {
+		FileChannel channel = new FileInputStream(filename).getChannel();
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) throw new IOException(filename + " is too short");
+			if (size > Integer.MAX_VALUE) throw new IOException(filename + " is too large");
+			ByteBuffer b;
+			if (map) {
+				b = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				b = ByteBuffer.allocate((int)size);
+				while (b.hasRemaining()) {
+					if (channel.read(b) < 0) throw new IOException(filename + " ended early");
+				}
+				b.rewind();
+			}
+			b.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (b.getInt(0) != MAGIC) throw new IOException(filename + " is not a frame file");
+			if (b.getInt(4) != VERSION) throw new IOException(filename + " has unsupported version " + b.getInt(4));
+			if (b.getInt(8) != type) throw new IOException(filename + " holds the wrong sample type");
+			int rows = b.getInt(12);
+			int cols = b.getInt(16);
+			long payload = b.getLong(24);
+			int sampleSize = type == TYPE_INT ? 4 : 8;
+			if (rows < 0 || cols < 0 || payload != (long)rows * cols * sampleSize) {
+				throw new IOException(filename + " has an inconsistent header");
+			}
+			if (payload != size - HEADER_SIZE) throw new IOException(filename + " has the wrong length, truncated?");
+			b.position(HEADER_SIZE);
+			if (crc(b) != b.getInt(20)) throw new IOException(filename + " failed its checksum");
+			return b;
+		} finally {
+			channel.close();
+		}
+	}
+
+	// CRC32 of the bytes between position and limit, position unchanged
+	static int crc(ByteBuffer b) {
+		CRC32 crc = new CRC32();
+		if (b.hasArray()) {
+			crc.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		} else {
+			byte[] chunk = new byte[65536];
+			ByteBuffer d = b.duplicate();
+			while (d.hasRemaining()) {
+				int n = Math.min(chunk.length, d.remaining());
+				d.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+		}
+		return (int)crc.getValue();
+	}
+}
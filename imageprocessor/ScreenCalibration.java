@@ -0,0 +1,349 @@
+package imageprocessor;
+
+import java.io.IOException;
+
+/*
+ Maps fingertips from the camera to screen (display) pixels.  Built
+ from touch correspondences by the direct linear transform, on
+ normalized points so a handful of samples is well conditioned.
+
+ HOMOGRAPHY   3x3, depth image (col, row) to screen; exact for
+              touches on a flat surface, needs 4 or more samples
+ PROJECTION   3x4, world (x, y, z) to screen; also right off the
+              surface (hover), needs 6 or more samples that do
+              not all lie in one plane
+
+ Saved with FrameIO as a 3x3 or 3x4 matrix; the shape tells the
+ two apart when loading.  A homography can also be turned into a
+ dense remap table, one source index per screen pixel, so whole
+ frames are warped with a lookup instead of a matrix per pixel
+ (see CanvasFrame.copy(int[], int[])).
+*/
+public class ScreenCalibration {
+
+	public static final int NONE = 0;
+	public static final int HOMOGRAPHY = 1;
+	public static final int PROJECTION = 2;
+	public static final int MAX_SAMPLES = 64;
+	public static final int UNMAPPED = -1;
+
+	int type = NONE;
+	double[] m = new double[12];			// row-major, 3x3 or 3x4 by type
+
+	// correspondences: image position, world point (NaN if unknown), screen position
+	int numSamples = 0;
+	double[] samples = new double[7 * MAX_SAMPLES];
+
+	public int getType() {
+		return type;
+	}
+
+	public boolean isCalibrated() {
+		return type != NONE;
+	}
+
+	////////////////////////////////////////////////////
+	// SAMPLES
+	////////////////////////////////////////////////////
+	public void clearSamples() {
+		numSamples = 0;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	// a touch seen at (col, row) of the depth image, world (x, y, z), meant for screen (sx, sy)
+	public boolean addSample(double col, double row, double x, double y, double z, double sx, double sy) {
+		if (numSamples == MAX_SAMPLES) return false;
+		int s = 7 * numSamples++;
+		samples[s] = col;
+		samples[s + 1] = row;
+		samples[s + 2] = x;
+		samples[s + 3] = y;
+		samples[s + 4] = z;
+		samples[s + 5] = sx;
+		samples[s + 6] = sy;
+		return true;
+	}
+
+	////////////////////////////////////////////////////
+	// SOLVE from the samples; returns false and keeps
+	// the old mapping if there are too few samples or
+	// they are degenerate (e.g. collinear)
+	////////////////////////////////////////////////////
+	public boolean solve(int type) {
+		if (type == HOMOGRAPHY) return solveHomography();
+		if (type == PROJECTION) return solveProjection();
+		return false;
+	}
+
+	boolean solveHomography() {
+		if (numSamples < 4) return false;
+		double[] src = new double[3];
+		double[] dst = new double[3];
+		normalization(0, 2, src);
+		normalization(5, 2, dst);
+		double[] ata = new double[8 * 8];
+		double[] atb = new double[8];
+		double[] a = new double[8];
+		for (int i = 0; i < numSamples; i++) {
+			int s = 7 * i;
+			double x = (samples[s] - src[0]) * src[2];
+			double y = (samples[s + 1] - src[1]) * src[2];
+			double u = (samples[s + 5] - dst[0]) * dst[2];
+			double v = (samples[s + 6] - dst[1]) * dst[2];
+			a[0] = x; a[1] = y; a[2] = 1; a[3] = 0; a[4] = 0; a[5] = 0; a[6] = -u * x; a[7] = -u * y;
+			accumulate(ata, atb, a, u, 8);
+			a[0] = 0; a[1] = 0; a[2] = 0; a[3] = x; a[4] = y; a[5] = 1; a[6] = -v * x; a[7] = -v * y;
+			accumulate(ata, atb, a, v, 8);
+		}
+		if (!solveSymmetric(ata, atb, 8)) return false;
+
+		// undo the normalizations: H = Tdst^-1 * Hn * Tsrc
+		double[] hn = { atb[0], atb[1], atb[2], atb[3], atb[4], atb[5], atb[6], atb[7], 1 };
+		for (int r = 0; r < 3; r++) {
+			double h0 = hn[3 * r] * src[2];
+			double h1 = hn[3 * r + 1] * src[2];
+			double h2 = hn[3 * r + 2] - hn[3 * r] * src[2] * src[0] - hn[3 * r + 1] * src[2] * src[1];
+			hn[3 * r] = h0;
+			hn[3 * r + 1] = h1;
+			hn[3 * r + 2] = h2;
+		}
+		for (int c = 0; c < 3; c++) {
+			hn[c] = hn[c] / dst[2] + dst[0] * hn[6 + c];
+			hn[3 + c] = hn[3 + c] / dst[2] + dst[1] * hn[6 + c];
+		}
+		set(HOMOGRAPHY, hn);
+		return true;
+	}
+
+	boolean solveProjection() {
+		double[] src = new double[4];
+		double[] dst = new double[3];
+		int n = 0;
+		for (int i = 0; i < numSamples; i++) {
+			if (!Double.isNaN(samples[7 * i + 4])) n++;
+		}
+		if (n < 6) return false;
+		normalization(2, 3, src);
+		normalization(5, 2, dst);
+		double[] ata = new double[11 * 11];
+		double[] atb = new double[11];
+		double[] a = new double[11];
+		for (int i = 0; i < numSamples; i++) {
+			int s = 7 * i;
+			if (Double.isNaN(samples[s + 4])) continue;
+			double x = (samples[s + 2] - src[0]) * src[3];
+			double y = (samples[s + 3] - src[1]) * src[3];
+			double z = (samples[s + 4] - src[2]) * src[3];
+			double u = (samples[s + 5] - dst[0]) * dst[2];
+			double v = (samples[s + 6] - dst[1]) * dst[2];
+			a[0] = x; a[1] = y; a[2] = z; a[3] = 1; a[4] = 0; a[5] = 0; a[6] = 0; a[7] = 0;
+			a[8] = -u * x; a[9] = -u * y; a[10] = -u * z;
+			accumulate(ata, atb, a, u, 11);
+			a[0] = 0; a[1] = 0; a[2] = 0; a[3] = 0; a[4] = x; a[5] = y; a[6] = z; a[7] = 1;
+			a[8] = -v * x; a[9] = -v * y; a[10] = -v * z;
+			accumulate(ata, atb, a, v, 11);
+		}
+		if (!solveSymmetric(ata, atb, 11)) return false;
+
+		double[] pn = new double[12];
+		System.arraycopy(atb, 0, pn, 0, 11);
+		pn[11] = 1;
+		for (int r = 0; r < 3; r++) {
+			double t = pn[4 * r + 3];
+			for (int c = 0; c < 3; c++) {
+				t -= pn[4 * r + c] * src[3] * src[c];
+				pn[4 * r + c] *= src[3];
+			}
+			pn[4 * r + 3] = t;
+		}
+		for (int c = 0; c < 4; c++) {
+			pn[c] = pn[c] / dst[2] + dst[0] * pn[8 + c];
+			pn[4 + c] = pn[4 + c] / dst[2] + dst[1] * pn[8 + c];
+		}
+		set(PROJECTION, pn);
+		return true;
+	}
+
+	// centroid of dims sample columns starting at first, then the scale that puts
+	// the points an average of sqrt(dims) from it
+	void normalization(int first, int dims, double[] t) {
+		int n = 0;
+		for (int d = 0; d <= dims; d++) t[d] = 0;
+		for (int i = 0; i < numSamples; i++) {
+			int s = 7 * i + first;
+			if (Double.isNaN(samples[s + dims - 1])) continue;
+			for (int d = 0; d < dims; d++) t[d] += samples[s + d];
+			n++;
+		}
+		for (int d = 0; d < dims; d++) t[d] /= n;
+		double spread = 0;
+		for (int i = 0; i < numSamples; i++) {
+			int s = 7 * i + first;
+			if (Double.isNaN(samples[s + dims - 1])) continue;
+			double r2 = 0;
+			for (int d = 0; d < dims; d++) r2 += (samples[s + d] - t[d]) * (samples[s + d] - t[d]);
+			spread += Math.sqrt(r2);
+		}
+		t[dims] = spread > 0 ? Math.sqrt(dims) * n / spread : 1;
+	}
+
+	static void accumulate(double[] ata, double[] atb, double[] a, double b, int n) {
+		for (int i = 0; i < n; i++) {
+			if (a[i] == 0) continue;
+			for (int j = 0; j < n; j++) {
+				ata[i * n + j] += a[i] * a[j];
+			}
+			atb[i] += a[i] * b;
+		}
+	}
+
+	// gaussian elimination with partial pivoting, solution left in b
+	static boolean solveSymmetric(double[] a, double[] b, int n) {
+		double largest = 0;
+		for (int i = 0; i < n; i++) largest = Math.max(largest, Math.abs(a[i * n + i]));
+		double tiny = 1e-12 * largest;
+		for (int c = 0; c < n; c++) {
+			int p = c;
+			for (int r = c + 1; r < n; r++) {
+				if (Math.abs(a[r * n + c]) > Math.abs(a[p * n + c])) p = r;
+			}
+			if (Math.abs(a[p * n + c]) <= tiny) return false;
+			if (p != c) {
+				for (int k = 0; k < n; k++) {
+					double t = a[c * n + k]; a[c * n + k] = a[p * n + k]; a[p * n + k] = t;
+				}
+				double t = b[c]; b[c] = b[p]; b[p] = t;
+			}
+			for (int r = c + 1; r < n; r++) {
+				double f = a[r * n + c] / a[c * n + c];
+				if (f == 0) continue;
+				for (int k = c; k < n; k++) a[r * n + k] -= f * a[c * n + k];
+				b[r] -= f * b[c];
+			}
+		}
+		for (int c = n - 1; c >= 0; c--) {
+			double t = b[c];
+			for (int k = c + 1; k < n; k++) t -= a[c * n + k] * b[k];
+			b[c] = t / a[c * n + c];
+		}
+		return true;
+	}
+
+	////////////////////////////////////////////////////
+	// MATRIX access
+	////////////////////////////////////////////////////
+
+	// 9 (HOMOGRAPHY) or 12 (PROJECTION) values, row-major
+	public void set(int type, double[] mat) {
+		int n = type == HOMOGRAPHY ? 9 : 12;
+		if (type != HOMOGRAPHY && type != PROJECTION) throw new IllegalArgumentException("unknown calibration type " + type);
+		System.arraycopy(mat, 0, m, 0, n);
+		this.type = type;
+	}
+
+	public double[][] getMatrix() {
+		if (type == NONE) return null;
+		int cols = type == HOMOGRAPHY ? 3 : 4;
+		double[][] mat = new double[3][cols];
+		for (int r = 0; r < 3; r++) {
+			System.arraycopy(m, r * cols, mat[r], 0, cols);
+		}
+		return mat;
+	}
+
+	public void save(String filename) throws IOException {
+		if (type == NONE) throw new IOException("nothing to save, not calibrated");
+		FrameIO.writeMatrix(filename, getMatrix());
+	}
+
+	public void load(String filename) throws IOException {
+		double[][] mat = FrameIO.readMatrix(filename);
+		if (mat.length != 3 || (mat[0].length != 3 && mat[0].length != 4)) {
+			throw new IOException(filename + " is not a 3x3 or 3x4 calibration");
+		}
+		int cols = mat[0].length;
+		double[] flat = new double[3 * cols];
+		for (int r = 0; r < 3; r++) {
+			System.arraycopy(mat[r], 0, flat, r * cols, cols);
+		}
+		set(cols == 3 ? HOMOGRAPHY : PROJECTION, flat);
+	}
+
+	////////////////////////////////////////////////////
+	// APPLY to one point; false if it cannot be mapped
+	////////////////////////////////////////////////////
+
+	// image position to screen, HOMOGRAPHY only
+	public boolean imageToScreen(double col, double row, double[] out) {
+		if (type != HOMOGRAPHY) return false;
+		double w = m[6] * col + m[7] * row + m[8];
+		if (w <= 0) return false;
+		out[0] = (m[0] * col + m[1] * row + m[2]) / w;
+		out[1] = (m[3] * col + m[4] * row + m[5]) / w;
+		return true;
+	}
+
+	// world point to screen, PROJECTION only
+	public boolean worldToScreen(double x, double y, double z, double[] out) {
+		if (type != PROJECTION || Double.isNaN(z)) return false;
+		double w = m[8] * x + m[9] * y + m[10] * z + m[11];
+		if (w <= 0) return false;
+		out[0] = (m[0] * x + m[1] * y + m[2] * z + m[3]) / w;
+		out[1] = (m[4] * x + m[5] * y + m[6] * z + m[7]) / w;
+		return true;
+	}
+
+	// whichever the calibration uses
+	public boolean toScreen(double col, double row, double x, double y, double z, double[] out) {
+		return type == HOMOGRAPHY ? imageToScreen(col, row, out) : worldToScreen(x, y, z, out);
+	}
+
+	////////////////////////////////////////////////////
+	// DENSE REMAP: remap[screen pixel] = index of the
+	// nearest image pixel it shows, UNMAPPED outside.
+	// built once by walking the inverse homography
+	// along each screen row.
+	////////////////////////////////////////////////////
+	public int[] buildRemap(int srcw, int srch, int dstw, int dsth) {
+		return buildRemap(srcw, srch, dstw, dsth, new int[dstw * dsth]);
+	}
+
+	public int[] buildRemap(int srcw, int srch, int dstw, int dsth, int[] remap) {
+		if (type != HOMOGRAPHY) throw new IllegalStateException("a dense remap needs a HOMOGRAPHY calibration");
+		// inverse by the adjugate, the scale does not matter
+		double i0 = m[4] * m[8] - m[5] * m[7];
+		double i1 = m[2] * m[7] - m[1] * m[8];
+		double i2 = m[1] * m[5] - m[2] * m[4];
+		double i3 = m[5] * m[6] - m[3] * m[8];
+		double i4 = m[0] * m[8] - m[2] * m[6];
+		double i5 = m[2] * m[3] - m[0] * m[5];
+		double i6 = m[3] * m[7] - m[4] * m[6];
+		double i7 = m[1] * m[6] - m[0] * m[7];
+		double i8 = m[0] * m[4] - m[1] * m[3];
+		if (m[0] * i0 + m[1] * i3 + m[2] * i6 < 0) {
+			// keep the homogeneous coordinate positive in front
+			i0 = -i0; i1 = -i1; i2 = -i2; i3 = -i3; i4 = -i4; i5 = -i5; i6 = -i6; i7 = -i7; i8 = -i8;
+		}
+		for (int v = 0, k = 0; v < dsth; v++) {
+			double x = i1 * v + i2;
+			double y = i4 * v + i5;
+			double w = i7 * v + i8;
+			for (int u = 0; u < dstw; u++, k++) {
+				int col = -1;
+				int row = -1;
+				if (w > 0) {
+					col = (int)Math.floor(x / w + 0.5);
+					row = (int)Math.floor(y / w + 0.5);
+				}
+				remap[k] = (col >= 0 && row >= 0 && col < srcw && row < srch) ? row * srcw + col : UNMAPPED;
+				x += i0;
+				y += i3;
+				w += i6;
+			}
+		}
+		return remap;
+	}
+}
@@ -0,0 +1,158 @@
+package imageprocessor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ Runs a per-row image job on several cores by cutting the rows into
+ horizontal strips.  A fixed set of daemon workers waits for jobs;
+ the calling thread works on strips too and returns once every
+ strip is done.  Nothing is allocated per job, so it can run every
+ frame without feeding the garbage collector.
+
+ Strips are claimed from one atomic ticket that holds the job
+ number in its high half, so a worker that wakes up late can never
+ take a strip of a later job by mistake.
+
+ A strip that throws still counts as done, so the job always ends
+ with every strip finished; the first exception is then rethrown
+ on the calling thread.
+*/
+public class StripExecutor {
+
+	// one strip of a job: rows y0 (inclusive) to y1 (exclusive)
+	public interface Task {
+		void run(int strip, int y0, int y1);
+	}
+
+	static StripExecutor shared;
+
+	int threads;							// workers + the caller
+	Thread[] workers;
+	final Object lock = new Object();
+	volatile boolean shutdown = false;
+	int SPIN = 20000;						// polls before a worker blocks
+
+	// current job, written under lock before the generation changes
+	volatile int generation = 0;
+	Task task;
+	int rows;
+	int strips;
+	final AtomicLong ticket = new AtomicLong();	// generation << 32 | next strip
+	final AtomicInteger done = new AtomicInteger();
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	public StripExecutor(int threads) {
+		this.threads = Math.max(1, threads);
+		workers = new Thread[this.threads - 1];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					workerLoop();
+				}
+			}, "strip-" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	// one thread per core, shared by everyone who asks.  run() takes one job
+	// at a time, so trackers updated from several threads at once (one per
+	// sensor, as in MultiKinectTracker) wait for each other here; give each
+	// of those its own executor instead
+	public static synchronized StripExecutor getShared() {
+		if (shared == null) shared = new StripExecutor(Runtime.getRuntime().availableProcessors());
+		return shared;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	////////////////////////////////////////////////////
+	// RUN task over rows [0, rows) in up to `strips`
+	// strips, on the calling thread alone if that is 1.
+	// one job at a time: run is synchronized, so a
+	// second caller blocks until the first job is done.
+	////////////////////////////////////////////////////
+	public synchronized void run(Task task, int rows, int strips) {
+		strips = Math.max(1, Math.min(Math.min(strips, threads), rows));
+		if (strips == 1 || shutdown) {
+			task.run(0, 0, rows);
+			return;
+		}
+		int gen;
+		synchronized (lock) {
+			this.task = task;
+			this.rows = rows;
+			this.strips = strips;
+			done.set(0);
+			failure.set(null);
+			gen = generation + 1;
+			ticket.set((long)gen << 32);
+			generation = gen;
+			lock.notifyAll();
+		}
+		work(gen, task, rows, strips);
+		while (done.get() < strips) {
+			Thread.yield();
+		}
+		this.task = null;
+		Throwable e = failure.getAndSet(null);
+		if (e instanceof RuntimeException) throw (RuntimeException)e;
+		if (e instanceof Error) throw (Error)e;
+		if (e != null) throw new RuntimeException(e);
+	}
+
+	void workerLoop() {
+		int seen = 0;
+		while (true) {
+			int spin = SPIN;
+			while (generation == seen && spin-- > 0 && !shutdown) {
+				// poll a little before blocking, jobs come every frame
+			}
+			Task t;
+			int r, s;
+			synchronized (lock) {
+				while (generation == seen && !shutdown) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (shutdown) return;
+				seen = generation;
+				t = task;
+				r = rows;
+				s = strips;
+			}
+			if (t != null) work(seen, t, r, s);
+		}
+	}
+
+	// claim and run strips of job gen until none are left
+	void work(int gen, Task t, int rows, int strips) {
+		while (true) {
+			long k = ticket.get();
+			int s = (int)k;
+			if ((int)(k >>> 32) != gen || s >= strips) return;
+			if (!ticket.compareAndSet(k, k + 1)) continue;
+			try {
+				t.run(s, (int)((long)rows * s / strips), (int)((long)rows * (s + 1) / strips));
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				done.incrementAndGet();
+			}
+		}
+	}
+
+	public void shutdown() {
+		synchronized (lock) {
+			shutdown = true;
+			lock.notifyAll();
+		}
+	}
+}
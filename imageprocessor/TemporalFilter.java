@@ -0,0 +1,174 @@
+package imageprocessor;
+
+import java.util.Arrays;
+
+/*
+ Smooths depth over time before contouring.  The last N frames
+ are kept in a ring of short[] images; each new frame costs one
+ pass over the pixels and allocates nothing.
+
+ Holes (2047) are filled before a frame enters the ring, with the
+ farthest of the pixel's previous value (for up to N frames) and
+ its valid 4-neighbours.  Taking the farthest means a fill never
+ grows a hand into the background behind it, it only closes holes
+ inside a surface, so the smoothing below sees complete frames.
+
+ MEDIAN       median of each pixel over the ring, so speckle
+              has to last more than half the window to show up
+ EXPONENTIAL  running average, 1 / 2^shift of the new sample,
+              restarted where depth jumps by more than jump so
+              moving fingers don't leave trails
+*/
+public class TemporalFilter {
+
+	public static final int MEDIAN = 0;
+	public static final int EXPONENTIAL = 1;
+	public static final int INVALID = 2047;
+
+	int w;
+	int size;					// pixels per frame
+	int length;					// frames in the ring
+	short[][] ring;
+	int head = 0;				// slot the next frame goes into
+	int count = 0;				// frames in the ring, up to length
+	byte[] holeAge;				// frames each pixel has been filled for
+	int[] ema;					// EXPONENTIAL state, depth << 8, -1 if none
+	int[] window;				// MEDIAN scratch, one pixel's samples
+
+	int mode = MEDIAN;
+	public int shift = 2;		// EXPONENTIAL weight of a new sample is 1 / 2^shift
+	public int jump = 12;		// EXPONENTIAL restarts on changes above this, raw units
+
+	public TemporalFilter(int w, int h, int length) {
+		this.w = w;
+		size = w * h;
+		this.length = length;
+		ring = new short[length][size];
+		holeAge = new byte[size];
+		ema = new int[size];
+		window = new int[length];
+		reset();
+	}
+
+	public void setMode(int mode) {
+		this.mode = mode;
+		reset();
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void reset() {
+		head = 0;
+		count = 0;
+		Arrays.fill(holeAge, (byte)0);
+		Arrays.fill(ema, -1);
+	}
+
+  ////////////////////////////////////////////////////
+  // FILTER one frame: in goes into the ring, the
+  // smoothed frame comes out.  in and out may be the
+  // same array.
+  ////////////////////////////////////////////////////
+	public void filter(int[] in, int[] out) {
+		short[] slot = ring[head];
+		short[] prev = ring[head == 0 ? length - 1 : head - 1];
+		boolean haveprev = count > 0;
+		int h = size / w;
+		for (int y = 0, i = 0; y < h; y++) {
+			for (int x = 0; x < w; x++, i++) {
+				int v = in[i];
+				if (v < INVALID) {
+					holeAge[i] = 0;
+				} else {
+					v = fill(in, i, x, y, haveprev ? prev : null);
+				}
+				slot[i] = (short)v;
+			}
+		}
+		head = (head + 1) % length;
+		if (count < length) count++;
+		if (mode == MEDIAN) {
+			median(out);
+		} else {
+			exponential(out);
+		}
+	}
+
+	// farthest of the previous value and the valid 4-neighbours of hole i
+	int fill(int[] in, int i, int x, int y, short[] prev) {
+		int v = -1;
+		if (prev != null && holeAge[i] < length) {
+			if (prev[i] < INVALID) v = prev[i];
+			holeAge[i]++;
+		}
+		int n;
+		if (x > 0 && (n = in[i - 1]) < INVALID && n > v) v = n;
+		if (x < w - 1 && (n = in[i + 1]) < INVALID && n > v) v = n;
+		if (y > 0 && (n = in[i - w]) < INVALID && n > v) v = n;
+		if (i + w < size && (n = in[i + w]) < INVALID && n > v) v = n;
+		return v < 0 ? INVALID : v;
+	}
+
+	void median(int[] out) {
+		if (count == 3) {
+			median3(out);
+			return;
+		}
+		int[] win = window;
+		int n = count;
+		int mid = (n - 1) >> 1;
+		for (int i = 0; i < size; i++) {
+			// insertion sort of the pixel's samples
+			for (int k = 0; k < n; k++) {
+				int v = ring[k][i];
+				int j = k;
+				while (j > 0 && win[j - 1] > v) {
+					win[j] = win[j - 1];
+					j--;
+				}
+				win[j] = v;
+			}
+			out[i] = win[mid];
+		}
+	}
+
+	void median3(int[] out) {
+		short[] r0 = ring[0];
+		short[] r1 = ring[1];
+		short[] r2 = ring[2];
+		for (int i = 0; i < size; i++) {
+			int a = r0[i];
+			int b = r1[i];
+			int c = r2[i];
+			out[i] = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+		}
+	}
+
+	void exponential(int[] out) {
+		short[] cur = ring[head == 0 ? length - 1 : head - 1];
+		int limit = jump << 8;
+		for (int i = 0; i < size; i++) {
+			int v = cur[i];
+			if (v >= INVALID) {
+				ema[i] = -1;
+				out[i] = INVALID;
+				continue;
+			}
+			int e = ema[i];
+			int target = v << 8;
+			if (e < 0 || target - e > limit || e - target > limit) {
+				e = target;
+			} else {
+				e += (target - e) >> shift;
+			}
+			ema[i] = e;
+			out[i] = (e + 128) >> 8;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package imageprocessor;
+
+/*
+ Removes lens distortion from depth and video frames so the ideal
+ pinhole models downstream hold all the way into the corners.
+
+ Distortion is Brown-Conrady, coefficients in the usual calibration
+ tool order { k1, k2, p1, p2 [, k3] }: for a normalized undistorted
+ point (x, y) with r^2 = x^2 + y^2 the lens shows it at
+
+   x' = x (1 + k1 r^2 + k2 r^4 + k3 r^6) + 2 p1 x y + p2 (r^2 + 2 x^2)
+   y' = y (1 + k1 r^2 + k2 r^4 + k3 r^6) + p1 (r^2 + 2 y^2) + 2 p2 x y
+
+ That is evaluated once per output pixel when the map is built and
+ kept as two int tables: the top left source pixel, and its 8 bit
+ fractional offsets packed as fy << 16 | fx.  A frame is then one
+ sequential pass over the output with no floating point.
+
+ NEAREST    rounds to the closest source pixel
+ BILINEAR   weights the four around it; on depth only when all four
+            are valid and within jump of each other, else nearest,
+            so edges and holes never produce in-between depths
+*/
+public class UndistortMap {
+
+	public static final int NEAREST = 0;
+	public static final int BILINEAR = 1;
+	public static final int INVALID = 2047;
+	public static final int OUTSIDE = -1;
+
+	int w;
+	int h;
+	int[] index;				// top left source pixel per output pixel, OUTSIDE if none
+	int[] frac;					// fy << 16 | fx, each 0..256
+
+	int mode = BILINEAR;
+	public int jump = 12;		// depth samples further apart than this are not blended
+
+	// fx, fy, cx, cy in pixels; mirrored if the frames are flipped left to right
+	public UndistortMap(int w, int h, double fx, double fy, double cx, double cy, double[] dist, boolean mirrored) {
+		this.w = w;
+		this.h = h;
+		index = new int[w * h];
+		frac = new int[w * h];
+		double k1 = dist[0];
+		double k2 = dist[1];
+		double p1 = dist[2];
+		double p2 = dist[3];
+		double k3 = dist.length > 4 ? dist[4] : 0;
+		for (int v = 0, i = 0; v < h; v++) {
+			double y = (v - cy) / fy;
+			for (int u = 0; u < w; u++, i++) {
+				double x = ((mirrored ? w - 1 - u : u) - cx) / fx;
+				double r2 = x * x + y * y;
+				double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+				double xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+				double yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+				double sx = fx * xd + cx;
+				double sy = fy * yd + cy;
+				if (mirrored) sx = w - 1 - sx;
+				set(i, sx, sy);
+			}
+		}
+	}
+
+	void set(int i, double sx, double sy) {
+		if (!(sx > -0.5 && sy > -0.5 && sx < w - 0.5 && sy < h - 0.5)) {
+			index[i] = OUTSIDE;
+			frac[i] = 0;
+			return;
+		}
+		// keep the 2x2 neighbourhood inside the frame; a weight of 256 reaches the far pixel
+		int x0 = Math.min(Math.max((int)Math.floor(sx), 0), w - 2);
+		int y0 = Math.min(Math.max((int)Math.floor(sy), 0), h - 2);
+		int fx = (int)Math.round((sx - x0) * 256);
+		int fy = (int)Math.round((sy - y0) * 256);
+		fx = Math.min(Math.max(fx, 0), 256);
+		fy = Math.min(Math.max(fy, 0), 256);
+		index[i] = y0 * w + x0;
+		frac[i] = fy << 16 | fx;
+	}
+
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	////////////////////////////////////////////////////
+	// DEPTH: raw 11 bit samples, 2047 where nothing
+	// maps or only holes are near
+	////////////////////////////////////////////////////
+	public void undistortDepth(int[] src, int[] dst) {
+		int n = w * h;
+		int[] idx = index;
+		int[] fr = frac;
+		if (mode == NEAREST) {
+			for (int i = 0; i < n; i++) {
+				int k = idx[i];
+				if (k < 0) {
+					dst[i] = INVALID;
+					continue;
+				}
+				int f = fr[i];
+				if ((f & 0xFFFF) >= 128) k++;
+				if (f >= 128 << 16) k += w;
+				dst[i] = src[k];
+			}
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			int k = idx[i];
+			if (k < 0) {
+				dst[i] = INVALID;
+				continue;
+			}
+			int f = fr[i];
+			int fx = f & 0xFFFF;
+			int fy = f >>> 16;
+			int a = src[k];
+			int b = src[k + 1];
+			int c = src[k + w];
+			int d = src[k + w + 1];
+			int lo = Math.min(Math.min(a, b), Math.min(c, d));
+			int hi = Math.max(Math.max(a, b), Math.max(c, d));
+			if (hi >= INVALID || hi - lo > jump) {
+				dst[i] = fy >= 128 ? (fx >= 128 ? d : c) : (fx >= 128 ? b : a);
+				continue;
+			}
+			int top = (a << 8) + (b - a) * fx;
+			int bottom = (c << 8) + (d - c) * fx;
+			dst[i] = ((top << 8) + (bottom - top) * fy + (1 << 15)) >> 16;
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// VIDEO: packed 0xAARRGGBB, black outside
+	////////////////////////////////////////////////////
+	public void undistortRGB(int[] src, int[] dst) {
+		int n = w * h;
+		int[] idx = index;
+		int[] fr = frac;
+		for (int i = 0; i < n; i++) {
+			int k = idx[i];
+			if (k < 0) {
+				dst[i] = 0xFF000000;
+				continue;
+			}
+			int f = fr[i];
+			int fx = f & 0xFFFF;
+			int fy = f >>> 16;
+			if (mode == NEAREST) {
+				if (fx >= 128) k++;
+				if (fy >= 128) k += w;
+				dst[i] = src[k];
+				continue;
+			}
+			int a = src[k];
+			int b = src[k + 1];
+			int c = src[k + w];
+			int d = src[k + w + 1];
+			// red and blue together in one int, green in another
+			int ab = blend(a & 0xFF00FF, b & 0xFF00FF, fx) & 0xFF00FF00;
+			int cd = blend(c & 0xFF00FF, d & 0xFF00FF, fx) & 0xFF00FF00;
+			int rb = blend(ab >>> 8, cd >>> 8, fy) >>> 8 & 0xFF00FF;
+			int g0 = blend(a & 0xFF00, b & 0xFF00, fx) >>> 8 & 0xFF00;
+			int g1 = blend(c & 0xFF00, d & 0xFF00, fx) >>> 8 & 0xFF00;
+			int g = blend(g0, g1, fy) >>> 8 & 0xFF00;
+			dst[i] = 0xFF000000 | rb | g;
+		}
+	}
+
+	// p + (q - p) * t / 256, scaled up by 256; channels 16 bits apart don't interfere
+	static int blend(int p, int q, int t) {
+		return (p << 8) + (q - p) * t;
+	}
+}
@@ -0,0 +1,14 @@
+package imageprocessor;
+
+/*
+ Turns a depth image position and raw depth sample into a metric
+ 3D point.  Implemented by the camera model of whatever produced
+ the depth, so trackers can report world coordinates without
+ knowing about the sensor.
+*/
+public interface WorldProjector {
+
+	// fill xyz with the point seen at (col, row) of the full resolution
+	// depth image with raw depth value depth, NaN if depth is invalid
+	void toWorld(double col, double row, int depth, double[] xyz);
+}
@@ -0,0 +1,158 @@
+package kinectdigitizer;
+
+import imageprocessor.WorldProjector;
+
+/*
+ Pinhole model of the Kinect IR (depth) camera, turning raw 11-bit
+ depth samples into metric camera space (centimeters, sensor at the
+ origin, x to the left, y up, z away from the sensor).
+
+ All per-pixel math is done through tables built once:
+
+	zTable[d]		Z for raw depth d, NaN where d is invalid
+	colRay[col]		(cx - col) / f, so X = Z * colRay[col]
+	rowRay[row]		(cy - row) / f, so Y = Z * rowRay[row]
+
+ so a point costs one table lookup and two multiplies, and a whole
+ frame converts without a single division.
+
+ Point clouds are structure-of-arrays: for an n pixel frame xyz[0..n)
+ holds X, xyz[n..2n) Y and xyz[2n..3n) Z, each in pixel order.
+ Invalid pixels come out as NaN in all three.
+*/
+public class DepthCameraModel implements WorldProjector {
+
+	public static final int NUM_DEPTHS = 2048;
+	public static final int INVALID = 2047;
+
+	// raw depth to Z:  Z = BASELINE_FOCAL / (DEPTH_OFFSET - d)
+	public static final double IR_FOCAL_LENGTH = 580;		// in pixels
+	public static final double BASELINE_FOCAL = 7.5 * IR_FOCAL_LENGTH * 8.0;
+	public static final double DEPTH_OFFSET = 1091.5;
+
+	int width;
+	int height;
+	double focal;
+	double cx;
+	double cy;
+
+	float[] zTable = new float[NUM_DEPTHS];
+	float[] colRay;
+	float[] rowRay;
+
+	public DepthCameraModel() {
+		this(640, 480, IR_FOCAL_LENGTH, 320, 240);
+	}
+
+	public DepthCameraModel(int width, int height, double focal, double cx, double cy) {
+		this.width = width;
+		this.height = height;
+		this.focal = focal;
+		this.cx = cx;
+		this.cy = cy;
+		colRay = new float[width];
+		rowRay = new float[height];
+		for (int d = 0; d < NUM_DEPTHS; d++) {
+			double z = BASELINE_FOCAL / (DEPTH_OFFSET - d);
+			zTable[d] = (d == INVALID || z <= 0) ? Float.NaN : (float)z;
+		}
+		for (int col = 0; col < width; col++) {
+			colRay[col] = (float)((cx - col) / focal);
+		}
+		for (int row = 0; row < height; row++) {
+			rowRay[row] = (float)((cy - row) / focal);			// right-handed
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public double getFocalLength() {
+		return focal;
+	}
+
+	////////////////////////////////////////////////////
+	// SINGLE POINTS
+	////////////////////////////////////////////////////
+
+	// Z in cm for raw depth d, NaN if d is not a valid measurement
+	public float getWorldZ(int d) {
+		return zTable[d & 0x7FF];
+	}
+
+	public float getWorldX(int col, float worldZ) {
+		return worldZ * colRay[col];
+	}
+
+	public float getWorldY(int row, float worldZ) {
+		return worldZ * rowRay[row];
+	}
+
+	public void toWorld(int col, int row, int d, float[] xyz) {
+		float z = zTable[d & 0x7FF];
+		xyz[0] = z * colRay[col];
+		xyz[1] = z * rowRay[row];
+		xyz[2] = z;
+	}
+
+	public void toWorld(int col, int row, int d, double[] xyz) {
+		float z = zTable[d & 0x7FF];
+		xyz[0] = z * colRay[col];
+		xyz[1] = z * rowRay[row];
+		xyz[2] = z;
+	}
+
+	// sub-pixel position, e.g. a fingertip
+	public void toWorld(double col, double row, int d, double[] xyz) {
+		float z = zTable[d & 0x7FF];
+		xyz[0] = z * (cx - col) / focal;
+		xyz[1] = z * (cy - row) / focal;
+		xyz[2] = z;
+	}
+
+	public float getScreenX(float worldX, float worldZ) {
+		return (float)(cx - focal * worldX / worldZ);
+	}
+
+	public float getScreenY(float worldY, float worldZ) {
+		return (float)(cy - focal * worldY / worldZ);
+	}
+
+	////////////////////////////////////////////////////
+	// WHOLE FRAMES
+	////////////////////////////////////////////////////
+
+	// fill xyz (3 * width * height floats) with the point cloud of a depth frame
+	public void depthToPointCloud(int[] depth, float[] xyz) {
+		int n = width * height;
+		float[] zt = zTable;
+		for (int row = 0, i = 0; row < height; row++) {
+			float ry = rowRay[row];
+			for (int col = 0; col < width; col++, i++) {
+				float z = zt[depth[i] & 0x7FF];
+				xyz[i] = z * colRay[col];
+				xyz[n + i] = z * ry;
+				xyz[2 * n + i] = z;
+			}
+		}
+	}
+
+	// same, interleaved x, y, z per pixel in doubles
+	public void depthToPointCloud(int[] depth, double[] xyz) {
+		float[] zt = zTable;
+		for (int row = 0, i = 0, k = 0; row < height; row++) {
+			float ry = rowRay[row];
+			for (int col = 0; col < width; col++, i++) {
+				float z = zt[depth[i] & 0x7FF];
+				xyz[k++] = z * colRay[col];
+				xyz[k++] = z * ry;
+				xyz[k++] = z;
+			}
+		}
+	}
+}
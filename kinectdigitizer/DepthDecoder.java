@@ -0,0 +1,203 @@
+package kinectdigitizer;
+
+import org.openkinect.freenect.DepthFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/*
+ Converts raw libfreenect depth payloads into int depth images.
+
+ D11BIT and D10BIT frames arrive as little-endian 16 bit samples in a
+ direct ByteBuffer.  decode() views that buffer as a ShortBuffer and
+ bulk-transfers one row at a time, optionally mirroring the row on the
+ way out so callers don't need a separate flip pass.
+
+ D11BIT_PACKED and D10BIT_PACKED frames are a big-endian bit stream with
+ no padding (8 pixels in 11 bytes, or 4 pixels in 5 bytes).  They cost
+ roughly 30% less USB bandwidth and are unpacked a row at a time,
+ a whole group of pixels per step.
+*/
+public class DepthDecoder {
+
+	public static final int DECODE_BYTEWISE = 0;
+	public static final int DECODE_BULK = 1;
+
+	int width;
+	int height;
+	short[] row;
+	byte[] packedRow;
+
+	// cached little-endian view of the last frame buffer we were handed
+	ByteBuffer lastFrame;
+	ShortBuffer lastView;
+	ByteBuffer lastBytesFrame;
+	ByteBuffer lastBytes;
+
+	public DepthDecoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+		row = new short[width];
+		packedRow = new byte[(width * 11 + 7) / 8];
+	}
+
+	// decode a payload of the given libfreenect format
+	public void decode(ByteBuffer frame, int[] dst, DepthFormat format, int mode, boolean mirror) {
+		if (format == DepthFormat.D11BIT_PACKED) {
+			decodePacked(frame, dst, 11, mirror);
+		} else if (format == DepthFormat.D10BIT_PACKED) {
+			decodePacked(frame, dst, 10, mirror);
+		} else {
+			decode(frame, dst, mode, mirror);
+		}
+	}
+
+	public static boolean isPacked(DepthFormat format) {
+		return format == DepthFormat.D11BIT_PACKED || format == DepthFormat.D10BIT_PACKED;
+	}
+
+	public void decode(ByteBuffer frame, int[] dst, int mode, boolean mirror) {
+		if (mode == DECODE_BYTEWISE) {
+			decodeBytewise(frame, dst, mirror);
+		} else {
+			decode(frame, dst, mirror);
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// BULK decode through a little-endian ShortBuffer
+	////////////////////////////////////////////////////
+	public void decode(ByteBuffer frame, int[] dst, boolean mirror) {
+		ShortBuffer sb = view(frame);
+		sb.clear();
+		int w = width;
+		short[] r = row;
+		for (int y = 0, o = 0; y < height; y++, o += w) {
+			sb.get(r, 0, w);
+			if (mirror) {
+				for (int x = 0, j = o + w - 1; x < w; x++, j--) {
+					dst[j] = r[x] & 0xFFFF;
+				}
+			} else {
+				for (int x = 0; x < w; x++) {
+					dst[o + x] = r[x] & 0xFFFF;
+				}
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// PACKED decode, bits is 10 or 11
+	////////////////////////////////////////////////////
+	public void decodePacked(ByteBuffer frame, int[] dst, int bits, boolean mirror) {
+		ByteBuffer b = bytes(frame);
+		int w = width;
+		int rowBytes = (w * bits) / 8;
+		byte[] p = packedRow;
+		boolean fast = (bits == 11 && w % 8 == 0) || (bits == 10 && w % 4 == 0);
+		for (int y = 0, o = 0; y < height; y++, o += w) {
+			if (fast) {
+				b.get(p, 0, rowBytes);
+				if (bits == 11) unpack11(p, dst, o, w, mirror);
+				else unpack10(p, dst, o, w, mirror);
+			} else {
+				unpackBits(b, dst, o, w, bits, mirror);
+			}
+		}
+	}
+
+	// 8 pixels from every 11 bytes
+	static void unpack11(byte[] p, int[] dst, int o, int w, boolean mirror) {
+		int step = mirror ? -1 : 1;
+		int j = mirror ? o + w - 1 : o;
+		for (int i = 0; i < w / 8 * 11; i += 11) {
+			long hi = (p[i] & 255L) << 56 | (p[i + 1] & 255L) << 48 | (p[i + 2] & 255L) << 40 | (p[i + 3] & 255L) << 32
+					| (p[i + 4] & 255L) << 24 | (p[i + 5] & 255L) << 16 | (p[i + 6] & 255L) << 8 | (p[i + 7] & 255L);
+			int lo = (p[i + 8] & 255) << 16 | (p[i + 9] & 255) << 8 | (p[i + 10] & 255);
+			dst[j] = (int)(hi >>> 53);						j += step;
+			dst[j] = (int)(hi >>> 42) & 0x7FF;				j += step;
+			dst[j] = (int)(hi >>> 31) & 0x7FF;				j += step;
+			dst[j] = (int)(hi >>> 20) & 0x7FF;				j += step;
+			dst[j] = (int)(hi >>> 9) & 0x7FF;				j += step;
+			dst[j] = ((int)hi & 0x1FF) << 2 | lo >>> 22;	j += step;
+			dst[j] = (lo >>> 11) & 0x7FF;					j += step;
+			dst[j] = lo & 0x7FF;							j += step;
+		}
+	}
+
+	// 4 pixels from every 5 bytes
+	static void unpack10(byte[] p, int[] dst, int o, int w, boolean mirror) {
+		int step = mirror ? -1 : 1;
+		int j = mirror ? o + w - 1 : o;
+		for (int i = 0; i < w / 4 * 5; i += 5) {
+			long v = (p[i] & 255L) << 32 | (p[i + 1] & 255L) << 24 | (p[i + 2] & 255L) << 16 | (p[i + 3] & 255L) << 8 | (p[i + 4] & 255L);
+			dst[j] = (int)(v >>> 30);						j += step;
+			dst[j] = (int)(v >>> 20) & 0x3FF;				j += step;
+			dst[j] = (int)(v >>> 10) & 0x3FF;				j += step;
+			dst[j] = (int)v & 0x3FF;						j += step;
+		}
+	}
+
+	// generic bit reader, same as libfreenect's convert_packed_to_16bit.
+	// only used when a row isn't a whole number of pixel groups.
+	int bitBuffer;
+	int bitsIn;
+
+	void unpackBits(ByteBuffer b, int[] dst, int o, int w, int bits, boolean mirror) {
+		if (o == 0) bitsIn = 0;
+		int mask = (1 << bits) - 1;
+		for (int x = 0; x < w; x++) {
+			while (bitsIn < bits) {
+				bitBuffer = (bitBuffer << 8) | (b.get() & 255);
+				bitsIn += 8;
+			}
+			bitsIn -= bits;
+			dst[mirror ? o + w - 1 - x : o + x] = (bitBuffer >> bitsIn) & mask;
+		}
+	}
+
+	// byte view of frame positioned at the first sample
+	ByteBuffer bytes(ByteBuffer frame) {
+		if (frame != lastBytesFrame) {
+			lastBytes = frame.duplicate();
+			lastBytesFrame = frame;
+		}
+		lastBytes.clear();
+		return lastBytes;
+	}
+
+	ShortBuffer view(ByteBuffer frame) {
+		if (frame != lastFrame) {
+			ByteBuffer b = frame.duplicate();
+			b.clear();
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			lastView = b.asShortBuffer();
+			lastFrame = frame;
+		}
+		return lastView;
+	}
+
+	////////////////////////////////////////////////////
+	// ORIGINAL byte at a time decode, kept for comparison
+	////////////////////////////////////////////////////
+	public void decodeBytewise(ByteBuffer frame, int[] dst, boolean mirror) {
+		int num_samples = 2 * width * height;
+		int ix = 0;
+		for( int i = 0; i < num_samples;) {
+			int lo = frame.get(i++) & 255;
+			int hi = frame.get(i++) & 255;
+			int sample = hi << 8 | lo;
+			dst[ix++] = sample;
+		}
+		if (mirror) {
+			for (int y = 0, o = 0; y < height; y++, o += width) {
+				for (int l = o, r = o + width - 1; l < r; l++, r--) {
+					int tmp = dst[l];
+					dst[l] = dst[r];
+					dst[r] = tmp;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package kinectdigitizer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ Records depth frames to a fixed-layout binary file that DepthRecording
+ can memory-map for replay.
+
+ The capture side (normally the libfreenect callback) only copies the
+ frame into a preallocated slot and hands it to a writer thread, so it
+ never touches the disk.  When the writer falls behind and all slots are
+ in flight, frames are counted as dropped instead of blocking capture.
+
+ FILE LAYOUT (little-endian)
+	header, HEADER_SIZE bytes
+		int   magic				'KDR1'
+		int   version
+		int   width
+		int   height
+		int   bytes per sample	2
+		int   record size
+		long  frame count		written on close
+		long  index offset		written on close, 0 if missing
+	records, record size bytes each, starting at HEADER_SIZE
+		long  sequence
+		int   sensor timestamp
+		int   reserved
+		long  arrival time		System.nanoTime() when captured
+		short depth[width * height]
+	index, INDEX_ENTRY_SIZE bytes per frame
+		long  arrival time
+		int   sensor timestamp
+		int   reserved
+*/
+public class DepthRecorder implements Runnable {
+
+	public static final int MAGIC = 0x4B445231;		// 'KDR1'
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_HEADER_SIZE = 24;
+	public static final int INDEX_ENTRY_SIZE = 16;
+
+	String filename;
+	int width;
+	int height;
+	int recordSize;
+	FileChannel channel;
+
+	ArrayBlockingQueue<ByteBuffer> free;
+	ArrayBlockingQueue<ByteBuffer> full;
+	Thread writer;
+	volatile boolean recording = false;
+
+	long sequence = 0;						// owned by the capture thread
+	long framesWritten = 0;					// owned by the writer thread
+	volatile long framesDropped = 0;
+
+	// index kept by the writer, grown as needed
+	long[] indexNanos = new long[1024];
+	int[] indexTimestamps = new int[1024];
+
+	public DepthRecorder(String filename, int width, int height) throws IOException {
+		this(filename, width, height, 16);
+	}
+
+	public DepthRecorder(String filename, int width, int height, int slots) throws IOException {
+		this.filename = filename;
+		this.width = width;
+		this.height = height;
+		recordSize = RECORD_HEADER_SIZE + 2 * width * height;
+
+		free = new ArrayBlockingQueue<ByteBuffer>(slots);
+		full = new ArrayBlockingQueue<ByteBuffer>(slots);
+		for (int i = 0; i < slots; i++) {
+			free.add(ByteBuffer.allocateDirect(recordSize).order(ByteOrder.LITTLE_ENDIAN));
+		}
+
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		writeHeader(0, 0);
+
+		recording = true;
+		writer = new Thread(this, "DepthRecorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	////////////////////////////////////////////////////
+	// CAPTURE SIDE
+	////////////////////////////////////////////////////
+
+	// record a raw D11BIT / D10BIT payload as delivered to the depth callback
+	public boolean offer(ByteBuffer frame, int timestamp) {
+		ByteBuffer slot = claimSlot(timestamp);
+		if (slot == null) return false;
+		int position = frame.position();
+		int limit = frame.limit();
+		frame.limit(position + 2 * width * height);
+		slot.put(frame);
+		frame.limit(limit);
+		frame.position(position);
+		return submit(slot);
+	}
+
+	// record an already decoded depth image
+	public boolean offer(int[] depth, int timestamp) {
+		return offer(depth, timestamp, false);
+	}
+
+	// same, for an image decoded with mirrored rows.  recordings always hold
+	// the sensor's orientation, so the rows are flipped back on the way in.
+	public boolean offer(int[] depth, int timestamp, boolean mirrored) {
+		ByteBuffer slot = claimSlot(timestamp);
+		if (slot == null) return false;
+		int n = width * height;
+		if (mirrored) {
+			for (int row = 0; row < n; row += width) {
+				for (int i = row + width - 1; i >= row; i--) {
+					slot.putShort((short)depth[i]);
+				}
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				slot.putShort((short)depth[i]);
+			}
+		}
+		return submit(slot);
+	}
+
+	ByteBuffer claimSlot(int timestamp) {
+		if (!recording) return null;
+		ByteBuffer slot = free.poll();
+		if (slot == null) {
+			framesDropped++;
+			return null;
+		}
+		slot.clear();
+		slot.putLong(++sequence);
+		slot.putInt(timestamp);
+		slot.putInt(0);
+		slot.putLong(System.nanoTime());
+		return slot;
+	}
+
+	boolean submit(ByteBuffer slot) {
+		slot.flip();
+		return full.offer(slot);
+	}
+
+	////////////////////////////////////////////////////
+	// WRITER THREAD
+	////////////////////////////////////////////////////
+
+	public void run() {
+		try {
+			while (recording || !full.isEmpty()) {
+				ByteBuffer slot = full.poll(100, java.util.concurrent.TimeUnit.MILLISECONDS);
+				if (slot == null) continue;
+				write(slot);
+				free.offer(slot);
+			}
+		} catch (InterruptedException e) {
+			System.out.println("DepthRecorder writer interrupted.");
+		} catch (IOException e) {
+			System.out.println("Problem writing depth recording " + filename + ": " + e.getMessage());
+			recording = false;
+		}
+	}
+
+	void write(ByteBuffer slot) throws IOException {
+		int k = (int)framesWritten;
+		if (k == indexNanos.length) {
+			long[] nanos = new long[2 * k];
+			int[] stamps = new int[2 * k];
+			System.arraycopy(indexNanos, 0, nanos, 0, k);
+			System.arraycopy(indexTimestamps, 0, stamps, 0, k);
+			indexNanos = nanos;
+			indexTimestamps = stamps;
+		}
+		indexTimestamps[k] = slot.getInt(8);
+		indexNanos[k] = slot.getLong(16);
+
+		long pos = HEADER_SIZE + framesWritten * recordSize;
+		while (slot.hasRemaining()) {
+			pos += channel.write(slot, pos);
+		}
+		framesWritten++;
+	}
+
+	////////////////////////////////////////////////////
+	// FINISH the file: drain, write index, fix up header
+	////////////////////////////////////////////////////
+	public void close() throws IOException {
+		if (writer == null) return;
+		recording = false;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while closing depth recording.");
+		}
+		writer = null;
+
+		// a frame claimed before recording went false can be submitted after
+		// the writer found full empty and quit, so write what is left here
+		ByteBuffer slot;
+		while ((slot = full.poll()) != null) {
+			write(slot);
+			free.offer(slot);
+		}
+
+		long indexOffset = HEADER_SIZE + framesWritten * recordSize;
+		ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * (int)framesWritten).order(ByteOrder.LITTLE_ENDIAN);
+		for (int k = 0; k < framesWritten; k++) {
+			index.putLong(indexNanos[k]);
+			index.putInt(indexTimestamps[k]);
+			index.putInt(0);
+		}
+		index.flip();
+		long pos = indexOffset;
+		while (index.hasRemaining()) {
+			pos += channel.write(index, pos);
+		}
+		writeHeader(framesWritten, indexOffset);
+		channel.force(false);
+		channel.close();
+		out("Recorded " + framesWritten + " depth frames to " + filename + " (" + framesDropped + " dropped)");
+	}
+
+	void writeHeader(long frameCount, long indexOffset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(2);
+		header.putInt(recordSize);
+		header.putLong(frameCount);
+		header.putLong(indexOffset);
+		header.clear();
+		long pos = 0;
+		while (header.hasRemaining()) {
+			pos += channel.write(header, pos);
+		}
+	}
+
+	public boolean isRecording() {
+		return recording;
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	public void out(String msg) {
+		System.out.println(msg);
+	}
+}
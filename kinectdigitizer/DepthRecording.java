@@ -0,0 +1,150 @@
+package kinectdigitizer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ Read-only, memory-mapped view of a file written by DepthRecorder.
+
+ Frames are mapped straight from the page cache, so random access to any
+ frame costs no read() and no copy until it is decoded.  Files larger
+ than 2GB are mapped in segments of whole records.  Recordings that were
+ never closed (no frame count or index) are still readable: the frame
+ count is recovered from the file length and times from the records.
+*/
+public class DepthRecording {
+
+	String filename;
+	FileChannel channel;
+	int width;
+	int height;
+	int recordSize;
+	int numFrames;
+	int framesPerSegment;
+	MappedByteBuffer[] segments;
+	ByteBuffer index;				// null if the recording was not closed
+	DepthDecoder decoder;
+
+	public DepthRecording(String filename) throws IOException {
+		this.filename = filename;
+		channel = new RandomAccessFile(filename, "r").getChannel();
+		try {
+			open();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	void open() throws IOException {
+		long size = channel.size();
+		if (size < DepthRecorder.HEADER_SIZE) throw new IOException(filename + " is too short to be a depth recording");
+
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, DepthRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != DepthRecorder.MAGIC) throw new IOException(filename + " is not a depth recording");
+		if (header.getInt(4) != DepthRecorder.VERSION) throw new IOException(filename + " has unsupported version " + header.getInt(4));
+		width = header.getInt(8);
+		height = header.getInt(12);
+		recordSize = header.getInt(20);
+		if (header.getInt(16) != 2 || recordSize != DepthRecorder.RECORD_HEADER_SIZE + 2 * width * height) {
+			throw new IOException(filename + " has an inconsistent header");
+		}
+		long frameCount = header.getLong(24);
+		long indexOffset = header.getLong(32);
+
+		long available = (size - DepthRecorder.HEADER_SIZE) / recordSize;
+		if (frameCount <= 0 || frameCount > available || indexOffset == 0) {
+			frameCount = available;			// recording was not closed cleanly
+			indexOffset = 0;
+		}
+		if (frameCount > Integer.MAX_VALUE) throw new IOException(filename + " has too many frames");
+		numFrames = (int)frameCount;
+
+		framesPerSegment = Math.max(1, Integer.MAX_VALUE / recordSize);
+		int numSegments = (numFrames + framesPerSegment - 1) / framesPerSegment;
+		segments = new MappedByteBuffer[numSegments];
+		for (int s = 0; s < numSegments; s++) {
+			long first = (long)s * framesPerSegment;
+			long count = Math.min(framesPerSegment, numFrames - first);
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, DepthRecorder.HEADER_SIZE + first * recordSize, count * recordSize);
+			segments[s].order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		if (indexOffset > 0 && indexOffset + (long)numFrames * DepthRecorder.INDEX_ENTRY_SIZE <= size) {
+			index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long)numFrames * DepthRecorder.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		decoder = new DepthDecoder(width, height);
+	}
+
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	////////////////////////////////////////////////////
+	// PER FRAME metadata, read in place
+	////////////////////////////////////////////////////
+	public long getSequence(int k) {
+		return segment(k).getLong(offset(k));
+	}
+
+	public int getTimestamp(int k) {
+		if (index != null) return index.getInt(k * DepthRecorder.INDEX_ENTRY_SIZE + 8);
+		return segment(k).getInt(offset(k) + 8);
+	}
+
+	public long getArrivalNanos(int k) {
+		if (index != null) return index.getLong(k * DepthRecorder.INDEX_ENTRY_SIZE);
+		return segment(k).getLong(offset(k) + 16);
+	}
+
+	////////////////////////////////////////////////////
+	// FRAME DATA
+	////////////////////////////////////////////////////
+
+	// zero-copy view of the raw little-endian samples of frame k
+	public ByteBuffer getFrameBuffer(int k) {
+		ByteBuffer b = segment(k).duplicate();
+		int o = offset(k) + DepthRecorder.RECORD_HEADER_SIZE;
+		b.limit(o + 2 * width * height);
+		b.position(o);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// decode frame k into dst
+	public void readFrame(int k, int[] dst) {
+		readFrame(k, dst, false);
+	}
+
+	public void readFrame(int k, int[] dst, boolean mirror) {
+		decoder.decode(getFrameBuffer(k), dst, mirror);
+	}
+
+	MappedByteBuffer segment(int k) {
+		if (k < 0 || k >= numFrames) throw new IndexOutOfBoundsException("frame " + k + " of " + numFrames);
+		return segments[k / framesPerSegment];
+	}
+
+	int offset(int k) {
+		return (k % framesPerSegment) * recordSize;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		segments = null;
+		index = null;
+	}
+}
@@ -0,0 +1,148 @@
+package kinectdigitizer;
+
+/*
+ Maps depth pixels to the video pixels that see the same point, so a
+ whole depth frame can be paired with its colours.
+
+ The RGB camera sits at (OX, OY, OZ) cm from the IR camera, looking the
+ same way.  A depth pixel (col, row) with metric depth Z projects to
+
+	rgbCol = cx - F * (Z * colRay[col] + OX) / (Z + OZ)
+	       = cx - A[d] * colRay[col] - BX[d]
+
+ with A[d] = F * Z / (Z + OZ) and BX[d] = F * OX / (Z + OZ), and the same
+ for rows with BY.  Those depend on raw depth d alone, so they are
+ tabulated for all 2048 values and mapping a pixel costs two
+ multiply-adds and no division.
+
+ Tables are built once and never written again, so one registration can
+ be shared by any number of threads.
+*/
+public class DepthRegistration {
+
+	public static final double RGB_FOCAL_LENGTH = 525;	// in pixels
+	public static final double RGB_OFFSET_X = -2.32;	// in cm wrt IR camera
+	public static final double RGB_OFFSET_Y = -1.49;	// in cm wrt IR camera
+	public static final double RGB_OFFSET_Z = -1.29;	// in cm wrt IR camera
+
+	public static final int UNMAPPED = -1;
+
+	DepthCameraModel camera;
+	int depthWidth;
+	int depthHeight;
+	int videoWidth;
+	int videoHeight;
+	float videoCx;
+	float videoCy;
+
+	// per raw depth; valid[d] is false where there is no measurement
+	float[] a = new float[DepthCameraModel.NUM_DEPTHS];
+	float[] bx = new float[DepthCameraModel.NUM_DEPTHS];
+	float[] by = new float[DepthCameraModel.NUM_DEPTHS];
+	boolean[] valid = new boolean[DepthCameraModel.NUM_DEPTHS];
+
+	// ray factors per depth column, for plain and for mirrored depth images
+	float[] colRay;
+	float[] colRayMirrored;
+	float[] rowRay;
+
+	public DepthRegistration(DepthCameraModel camera) {
+		this(camera, 640, 480, RGB_FOCAL_LENGTH, RGB_OFFSET_X, RGB_OFFSET_Y, RGB_OFFSET_Z);
+	}
+
+	public DepthRegistration(DepthCameraModel camera, int videoWidth, int videoHeight,
+			double rgbFocal, double ox, double oy, double oz) {
+		this.camera = camera;
+		this.videoWidth = videoWidth;
+		this.videoHeight = videoHeight;
+		videoCx = videoWidth / 2;
+		videoCy = videoHeight / 2;
+		depthWidth = camera.getWidth();
+		depthHeight = camera.getHeight();
+		for (int d = 0; d < DepthCameraModel.NUM_DEPTHS; d++) {
+			double z = camera.getWorldZ(d);
+			if (Double.isNaN(z) || z + oz <= 0) continue;
+			valid[d] = true;
+			a[d] = (float)(rgbFocal * z / (z + oz));
+			bx[d] = (float)(rgbFocal * ox / (z + oz));
+			by[d] = (float)(rgbFocal * oy / (z + oz));
+		}
+		colRay = new float[depthWidth];
+		colRayMirrored = new float[depthWidth];
+		rowRay = new float[depthHeight];
+		for (int col = 0; col < depthWidth; col++) {
+			colRay[col] = camera.colRay[col];
+			colRayMirrored[col] = camera.colRay[depthWidth - 1 - col];
+		}
+		for (int row = 0; row < depthHeight; row++) {
+			rowRay[row] = camera.rowRay[row];
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// ONE PIXEL: video index seen by depth pixel
+	// (col, row) at raw depth d, or UNMAPPED
+	////////////////////////////////////////////////////
+	public int mapPixel(int col, int row, int d, boolean mirrored) {
+		d &= 0x7FF;
+		if (!valid[d]) return UNMAPPED;
+		float ray = mirrored ? colRayMirrored[col] : colRay[col];
+		float u = videoCx - a[d] * ray - bx[d] + 0.5f;
+		float v = videoCy - a[d] * rowRay[row] - by[d] + 0.5f;
+		if (u < 0 || v < 0 || u >= videoWidth || v >= videoHeight) return UNMAPPED;
+		return (int)u + videoWidth * (int)v;
+	}
+
+	////////////////////////////////////////////////////
+	// WHOLE FRAME: video index per depth pixel.
+	// returns the number of pixels that mapped.
+	////////////////////////////////////////////////////
+	public int map(int[] depth, int[] videoIndex, boolean mirrored) {
+		float[] cr = mirrored ? colRayMirrored : colRay;
+		int count = 0;
+		for (int row = 0, i = 0; row < depthHeight; row++) {
+			float ry = rowRay[row];
+			for (int col = 0; col < depthWidth; col++, i++) {
+				int d = depth[i] & 0x7FF;
+				int index = UNMAPPED;
+				if (valid[d]) {
+					float u = videoCx - a[d] * cr[col] - bx[d] + 0.5f;
+					float v = videoCy - a[d] * ry - by[d] + 0.5f;
+					if (u >= 0 && v >= 0 && u < videoWidth && v < videoHeight) {
+						index = (int)u + videoWidth * (int)v;
+						count++;
+					}
+				}
+				videoIndex[i] = index;
+			}
+		}
+		return count;
+	}
+
+	////////////////////////////////////////////////////
+	// ALIGN a video frame to a depth frame: rgb[i] is
+	// the colour seen at depth pixel i, or background
+	// where nothing maps.  returns the mapped count.
+	////////////////////////////////////////////////////
+	public int align(int[] depth, int[] video, int[] rgb, boolean mirrored, int background) {
+		float[] cr = mirrored ? colRayMirrored : colRay;
+		int count = 0;
+		for (int row = 0, i = 0; row < depthHeight; row++) {
+			float ry = rowRay[row];
+			for (int col = 0; col < depthWidth; col++, i++) {
+				int d = depth[i] & 0x7FF;
+				int colour = background;
+				if (valid[d]) {
+					float u = videoCx - a[d] * cr[col] - bx[d] + 0.5f;
+					float v = videoCy - a[d] * ry - by[d] + 0.5f;
+					if (u >= 0 && v >= 0 && u < videoWidth && v < videoHeight) {
+						colour = video[(int)u + videoWidth * (int)v];
+						count++;
+					}
+				}
+				rgb[i] = colour;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,51 @@
+package kinectdigitizer;
+
+/*
+ Anything that produces depth frames (and optionally video frames) for
+ the tracking pipeline: a live Kinect, a recorded session, or a
+ synthetic scene.  Depth frames are int images of getDepthWidth() x
+ getDepthHeight() raw depth values, where 2047 is the point at infinity.
+*/
+public interface FrameSource {
+
+	void start();
+
+	void shutdown();
+
+	int getDepthWidth();
+
+	int getDepthHeight();
+
+	// copy newest complete depth frame into dst, returns its sequence number
+	long getDepthFrame(int[] dst);
+
+	// same, also filling stamp with the frame's sequence number and timing
+	long getDepthFrame(int[] dst, FrameStamp stamp);
+
+	// newest complete depth frame without copying, only valid until the next call
+	int[] getDepthFrame();
+
+	// sequence number, sensor timestamp and arrival time of the frame last returned
+	long getDepthFrameSequence();
+
+	int getDepthTimestamp();
+
+	void getDepthFrameStamp(FrameStamp stamp);
+
+	boolean hasNewDepthFrame();
+
+	// block until a depth frame newer than the last one returned is available.
+	// older unread frames are dropped, only the newest is kept.
+	// returns false on timeout.  only one thread may wait at a time.
+	boolean waitForDepthFrame(long timeoutMillis);
+
+	boolean hasVideo();
+
+	int getVideoWidth();
+
+	int getVideoHeight();
+
+	void getVideoFrame(int[] dst);
+
+	int getVideoTimestamp();
+}
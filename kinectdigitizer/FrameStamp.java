@@ -0,0 +1,26 @@
+package kinectdigitizer;
+
+/*
+ Identity and timing of one depth frame as it moves through the
+ pipeline.  Reused by callers, so reading a stamp never allocates.
+*/
+public class FrameStamp {
+
+	public long sequence;			// 1, 2, 3, ... per published frame, 0 if none yet
+	public int timestamp;			// sensor timestamp passed to onFrameReceived
+	public long arrivalNanos;		// System.nanoTime() when the frame reached the host
+
+	public void set(long sequence, int timestamp, long arrivalNanos) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.arrivalNanos = arrivalNanos;
+	}
+
+	public void set(FrameStamp s) {
+		set(s.sequence, s.timestamp, s.arrivalNanos);
+	}
+
+	public String toString() {
+		return "frame " + sequence + " ts " + timestamp + " arrived " + arrivalNanos;
+	}
+}
@@ -12,15 +12,15 @@ import java.awt.image.*;
 import javax.swing.event.*;
 import java.util.Arrays;
 
-public class KinectDigitizer extends KinectFrameGrabber
+public class KinectDigitizer extends KinectFrameGrabber implements WorldProjector
 {
 	
-	static double RGB_FOCAL_LENGTH = 525;	// in pixels
-	static double IR_FOCAL_LENGTH = 580;	// in pixels
+	static double RGB_FOCAL_LENGTH = DepthRegistration.RGB_FOCAL_LENGTH;	// in pixels
+	static double IR_FOCAL_LENGTH = DepthCameraModel.IR_FOCAL_LENGTH;	// in pixels
 	
-	static double RGB_OFFSET_X = -2.32;		// in cm wrt IR camera
-	static double RGB_OFFSET_Y = -1.49;		// in cm wrt IR camera
-	static double RGB_OFFSET_Z = -1.29;		// in cm wrt IR camera
+	static double RGB_OFFSET_X = DepthRegistration.RGB_OFFSET_X;		// in cm wrt IR camera
+	static double RGB_OFFSET_Y = DepthRegistration.RGB_OFFSET_Y;		// in cm wrt IR camera
+	static double RGB_OFFSET_Z = DepthRegistration.RGB_OFFSET_Z;		// in cm wrt IR camera
 	
 	public int[] pixDepth = new int[640 * 480];
 	public int[] pixDepth_ref = new int[640 * 480];
@@ -31,6 +31,11 @@ public class KinectDigitizer extends KinectFrameGrabber
 	public double offsetx = 0.0;
 	public double offsety = 0.0;
 	public double offsetz = 0.0;
+
+	public DepthCameraModel camera = new DepthCameraModel();
+	public DepthRegistration registration = new DepthRegistration(camera);
+	public PlaneEstimator plane = new PlaneEstimator(camera);
+	public int[] pixVideo = new int[640 * 480];
 	
 	public KinectDigitizer() {
 		super(0);
@@ -42,212 +47,218 @@ public class KinectDigitizer extends KinectFrameGrabber
 	
 	/////////////////////////////////////////////////////////////////////////////////
 	/* METHODS TO INFER ABSOLUTE XYZ FROM DEPTH IMAGE WITH CAMERA SENSOR AS ORIGIN */
+	/* (table driven, see DepthCameraModel)                                       */
 	/////////////////////////////////////////////////////////////////////////////////	
 	float getWorldZ(int depth) {
-		return (7.5f * (float)IR_FOCAL_LENGTH * 8.0f) / (1091.5f - depth);
-		
+		return camera.getWorldZ(depth);
 	}
 
 	float getWorldX(int col, float worldZ) {
-		return worldZ * (320.0f - col) / (float)IR_FOCAL_LENGTH;
+		return camera.getWorldX(col, worldZ);
 	}
 	
 	
 	float getWorldY(int row, float worldZ) {
-		return worldZ * (240.0f - row) / (float)IR_FOCAL_LENGTH;		// right-handed
+		return camera.getWorldY(row, worldZ);		// right-handed
 		
 	}
 	
 
 	double getWorldX(int col, double worldZ) {
-		return worldZ * (320.0 - col) / IR_FOCAL_LENGTH;
+		return worldZ * camera.colRay[col];
 	}
 	
 	double getWorldY(int row, double worldZ) {
-		return worldZ * (240.0 - row) / IR_FOCAL_LENGTH;				// right-handed
+		return worldZ * camera.rowRay[row];				// right-handed
 	}
 	
+	public DepthCameraModel getCameraModel() {
+		return camera;
+	}
+
+	/* world point at a (possibly mirrored) depth image position, for trackers */
+	public void toWorld(double col, double row, int depth, double[] xyz) {
+		camera.toWorld(mirrorDepth ? camera.getWidth() - 1 - col : col, row, depth, xyz);
+	}
+
 	/////////////////////////////////////////////////////////////////////////////////
 	/* METHODS TO INFER SCREEN COORDINATES WITH CAMERA SENSOR AS ORIGIN */
 	/////////////////////////////////////////////////////////////////////////////////	
 	public int getScreenX(float worldX, float worldZ) {
-		return (int)(320.0f - (float)IR_FOCAL_LENGTH * worldX / worldZ);		// right-handed		
+		return (int)camera.getScreenX(worldX, worldZ);		// right-handed		
 	}	
 	
 	public int getScreenY(float worldY, float worldZ) {
-		return (int)(240.0f - (float)IR_FOCAL_LENGTH * worldY / worldZ);		// right-handed		
+		return (int)camera.getScreenY(worldY, worldZ);		// right-handed		
 	}
 
 		
 	double[] xyd2xyz(int row, int col, int depth) {
 		double[] xyz = new double[3];
-		double z = getWorldZ(depth);
-		double x = getWorldX(col, z);
-		double y = getWorldY(row, z);
-		xyz[0] = x;
-		xyz[1] = y;
-		xyz[2] = z;
+		camera.toWorld(col, row, depth, xyz);
 		return xyz;
 	}
 
 	public void xyd2xyz(int row, int col, int depth, double[] xyz) {
-		double z = getWorldZ(depth);
-		double x = getWorldX(col, z);
-		double y = getWorldY(row, z);
-		xyz[0] = x;
-		xyz[1] = y;
-		xyz[2] = z;
+		camera.toWorld(col, row, depth, xyz);
 	}
 
 	public void xyd2xyz(int row, int col, int[] depth, double[] xyz) {
-		double z = getWorldZ(depth[row * 640 + col]);
-		double x = getWorldX(col, z);
-		double y = getWorldY(row, z);
-		xyz[0] = x;
-		xyz[1] = y;
-		xyz[2] = z;
+		camera.toWorld(col, row, depth[row * 640 + col], xyz);
 	}
 	
 
-	/* return the index of rgb buffer corresponding to depth index */
-	public double[] tmpXYZ = new double[3];
+	/* return the index of rgb buffer corresponding to depth index, */
+	/* or DepthRegistration.UNMAPPED if it falls outside the video   */
 	public int depth2rgb(int[] depBuf, int idx) {
-		xyd2xyz(idx / 640, idx % 640, depBuf[idx], tmpXYZ);
-		double X = tmpXYZ[0] + RGB_OFFSET_X; // centimeters translation from ir
-		double Y = tmpXYZ[1] + RGB_OFFSET_Y; // ditto
-		double Z = tmpXYZ[2] + RGB_OFFSET_Z; // ditto
-		int rgbCol = (int)Math.round(320 - RGB_FOCAL_LENGTH * (X / Z));
-		int rgbRow = (int)Math.round(240 - RGB_FOCAL_LENGTH * (Y / Z));
-		return rgbCol + 640 * rgbRow;
+		return registration.mapPixel(idx % 640, idx / 640, depBuf[idx], mirrorDepth);
+	}
+
+	/* video index for every depth pixel, see DepthRegistration */
+	public int depth2rgb(int[] depBuf, int[] rgbIndex) {
+		return registration.map(depBuf, rgbIndex, mirrorDepth);
+	}
+
+	/* colour of every depth pixel from the newest video frame, 0 where unmapped */
+	public int getAlignedVideoFrame(int[] depBuf, int[] rgb) {
+		getVideoFrame(pixVideo);
+		return registration.align(depBuf, pixVideo, rgb, mirrorDepth, 0);
+	}
+
+	/* lens distortion { k1, k2, p1, p2 [, k3] } of the IR camera, null for none.  */
+	/* frames come out undistorted, so the pinhole tables above stay exact.      */
+	/* the map is rebuilt whenever setMirrorDepth changes the orientation.       */
+	double[] depthDistortion;
+
+	public void setDepthDistortion(double[] dist) {
+		depthDistortion = dist == null ? null : dist.clone();
+		setDepthUndistort(depthUndistortMap(mirrorDepth));
+	}
+
+	UndistortMap depthUndistortMap(boolean mirror) {
+		return depthDistortion == null ? null : new UndistortMap(DEPTH_WIDTH, DEPTH_HEIGHT,
+				camera.focal, camera.focal, camera.cx, camera.cy, depthDistortion, mirror);
+	}
+
+	public void setMirrorDepth(boolean mirror) {
+		if (mirror == mirrorDepth || depthDistortion == null) {
+			super.setMirrorDepth(mirror);
+			return;
+		}
+		UndistortMap map = depthUndistortMap(mirror);		// built before either setting changes
+		super.setMirrorDepth(mirror);
+		setDepthUndistort(map);
+	}
+
+	/* same for the RGB camera, applied by getVideoFrame */
+	public void setVideoDistortion(double[] dist) {
+		setVideoUndistort(dist == null ? null : new UndistortMap(VIDEO_WIDTH, VIDEO_HEIGHT,
+				RGB_FOCAL_LENGTH, RGB_FOCAL_LENGTH, VIDEO_WIDTH / 2, VIDEO_HEIGHT / 2, dist, false));
 	}
 	
 	/////////////////////////////////////////////////////////////////////////////////
 	/* METHODS TO INFER ABSOLUTE XYZ FROM DEPTH IMAGE WITH QUAD AS ORIGIN          */
+	/* (camera space shifted by offsetx, offsety, offsetz)                         */
 	/////////////////////////////////////////////////////////////////////////////////
 	public void depth2xyz(int row, int col, int depth, double[] outxyz) {
-		double z = getWorldZ(depth);
-		double x = getWorldX(col, z);
-		double y = getWorldY(row, z);
+		camera.toWorld(col, row, depth, outxyz);
+		outxyz[0] -= offsetx;
+		outxyz[1] -= offsety;
+		outxyz[2] -= offsetz;
 	}
 	
 	public void depth2xyz(int row, int col, int[] depthBuf, double[] outxyz) {
-		double z = getWorldZ(depthBuf[row * 640 + col]);
-		double x = getWorldX(col, z);
-		double y = getWorldY(row, z);
+		depth2xyz(row, col, depthBuf[row * 640 + col], outxyz);
 	}
 
+	// interleaved x, y, z per pixel of buf into out (3 * buf.length doubles)
 	public void measureBuffer(int[] buf, double[] out) {
-		double[] xyz = new double[3];
-		int k = 0;
-		for (int i = 0; i < buf.length; i++) {
-			int x = i % 640;
-			int y = i / 640;
-			int d = buf[i];
-			depth2xyz(x, y, d, xyz);
-			out[k++] = xyz[0];
-			out[k++] = xyz[1];
-			out[k++] = xyz[2];
+		camera.depthToPointCloud(buf, out);
+		if (offsetx != 0 || offsety != 0 || offsetz != 0) {
+			for (int k = 0; k < out.length; k += 3) {
+				out[k] -= offsetx;
+				out[k + 1] -= offsety;
+				out[k + 2] -= offsetz;
+			}
 		}
 	}
 
+	// structure-of-arrays point cloud in camera space, see DepthCameraModel
+	public void depthToPointCloud(int[] buf, float[] xyz) {
+		camera.depthToPointCloud(buf, xyz);
+	}
+
+	///////////////////////////////////////////////////////////////////////////////
+	/* TABLE PLANE: refit if needed and fill pixPlane with height above it in mm */
+	///////////////////////////////////////////////////////////////////////////////
+	public boolean updatePlane(int[] depBuf) {
+		boolean found = plane.update(depBuf);
+		plane.heightMap(depBuf, pixPlane);
+		return found;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////
+	/* REFERENCE (EMPTY SCENE) DEPTH FRAME, kept in pixDepth_ref */
+	///////////////////////////////////////////////////////////////////////////////
+	public void captureReference() {
+		getDepthFrame(pixDepth_ref);
+	}
+
+	public boolean loadReference(String filename) {
+		return readIntBufferFromFile(filename, pixDepth_ref);
+	}
+
+	public void saveReference(String filename) {
+		writeIntBufferToFile(filename, pixDepth_ref);
+	}
+
 	///////////////////////////////////////////////////////////////////////////////
 	/* METHODS FOR FILE I/O */
 	///////////////////////////////////////////////////////////////////////////////
+	/* binary, checksummed files, see imageprocessor.FrameIO */
 	void writeDoubleMatrix2DToFile(String filename, double[][] buf) {
-		//String filename = "reference_image.dat";
-		
 		try {
 			System.out.println("Attempting to write file named " + filename);
-			FileWriter fstream = new FileWriter(filename, false);
-			BufferedWriter out = new BufferedWriter(fstream);
-			
-			String magic = "DOUBLE " + buf.length + " " + buf[0].length + "\n";
-			out.write(magic);
-			
-			for (int i = 0; i < buf.length; i++) {
-				for (int j = 0; j < buf[i].length; j++) {
-					out.write(buf[i][j] + "\n");
-				}
-			}
-			out.close();
+			FrameIO.writeMatrix(filename, buf);
 		} catch (IOException ioe) {
-			System.out.println("Problem saving int buffer to disk.");
+			System.out.println("Problem saving matrix to disk: " + ioe.getMessage());
 		}		
 	}
 	
-	void readDoubleMatrix2DFromFile(String filename, double[][] mat) {
-		
+	/* returns the matrix, or null if it could not be read */
+	double[][] readDoubleMatrix2DFromFile(String filename) {
 		try {
-			FileReader fstream = new FileReader(filename);			
-			if (fstream != null) {
-				BufferedReader in = new BufferedReader(fstream);
-				String s;
-				int linecount = 0;
-				try {
-					s = in.readLine();
-					String[] magic = s.split(" ");
-					int rows = Integer.parseInt(magic[1]);
-					int cols = Integer.parseInt(magic[2]);					
-					mat = new double[rows][cols];
-					out("Magic line: " + magic[0] + " " + magic[1] + " " + magic[2]);
-					while((s = in.readLine()) != null) {						
-						double sample = Double.parseDouble(s);
-						mat[linecount / 4][linecount % 4] = sample;
-						linecount++;
-					}
-					in.close();
-					for (int i = 0; i < rows; i++) {
-						out(Arrays.toString(mat[i]));
-					}
-				} catch (IOException e) {
-				}
-			}
+			double[][] mat = FrameIO.readMatrix(filename);
+			out("Read " + mat.length + "x" + (mat.length > 0 ? mat[0].length : 0) + " matrix from " + filename);
+			return mat;
 		} catch (FileNotFoundException ioe) {
-			System.out.println("File file not found.  Can't read int buffer.  Hopefully no big deal.");
+			System.out.println("File file not found.  Can't read matrix.  Hopefully no big deal.");
+		} catch (IOException ioe) {
+			System.out.println("Problem reading matrix: " + ioe.getMessage());
 		}
+		return null;
 	}
 	
 	void writeIntBufferToFile(String filename, int[] buf) {
-		
-		//String filename = "reference_image.dat";
-		
 		try {
 			System.out.println("Attempting to write file named " + filename);
-			FileWriter fstream = new FileWriter(filename, false);
-			BufferedWriter out = new BufferedWriter(fstream);
-			
-			for (int i = 0; i < buf.length; i++) {
-				out.write(buf[i] + "\n");				
-			}
-			out.close();
+			FrameIO.writeInts(filename, buf);
 		} catch (IOException ioe) {
-			System.out.println("Problem saving int buffer to disk.");
+			System.out.println("Problem saving int buffer to disk: " + ioe.getMessage());
 		}
-		
 	}
 	
-	void readIntBufferFromFile(String filename, int[] buf) {
-		
-		//String filename = "reference_image.dat";
-		
+	/* returns false if buf was left untouched */
+	boolean readIntBufferFromFile(String filename, int[] buf) {
 		try {
-			FileReader fstream = new FileReader(filename);			
-			if (fstream != null) {
-				BufferedReader in = new BufferedReader(fstream);
-				String s;
-				int linecount = 0;
-				try {
-					while((s = in.readLine()) != null) {
-						int sample = Integer.parseInt(s);
-						buf[linecount++] = sample;
-					}
-					in.close();
-				} catch (IOException e) {
-				}
-			}
+			FrameIO.readInts(filename, buf, true);
+			return true;
 		} catch (FileNotFoundException ioe) {
 			System.out.println("File file not found.  Can't read int buffer.  Hopefully no big deal.");
+		} catch (IOException ioe) {
+			System.out.println("Problem reading int buffer: " + ioe.getMessage());
 		}
+		return false;
 	}
 	
 	public void out(String msg) {
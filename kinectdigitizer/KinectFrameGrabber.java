@@ -1,6 +1,8 @@
 package kinectdigitizer;
 
 import org.openkinect.freenect.*;
+import imageprocessor.DepthPyramid;
+import imageprocessor.UndistortMap;
 import java.nio.ByteBuffer;
 import javax.swing.*;
 import java.awt.*;
@@ -8,7 +10,7 @@ import java.awt.event.*;
 import java.awt.image.*;
 import java.util.Arrays;
 
-public class KinectFrameGrabber {
+public class KinectFrameGrabber implements FrameSource {
 		
 	public int VIDEO_HEIGHT = 480;
 	public int VIDEO_WIDTH = 640;
@@ -21,10 +23,10 @@ public class KinectFrameGrabber {
     public Device dev;
 	
 	int[] pixVideo_back;
-	int[] pixDepth_back;
-	public int[] QuarterScaleOffsets;
+	TripleBuffer depthBuffers;
+	DepthPyramid depthPyramid;
 	
-	public double fpsVideo;
+	public double fpsVideo;			// frames per second, updated every 30 frames
 	public double fpsDepth;
 	
 	private long depthStartTime;
@@ -38,9 +40,55 @@ public class KinectFrameGrabber {
 	
 	public int log_level = 0;
 
+	// DepthDecoder.DECODE_BULK or DepthDecoder.DECODE_BYTEWISE
+	public int depthDecodeMode = DepthDecoder.DECODE_BULK;
+	// mirror depth rows while decoding (replaces a separate flip pass)
+	public boolean mirrorDepth = false;
+	DepthDecoder depthDecoder;
 
-	static {
-		ctx = Freenect.createContext();		
+	// lens correction applied to every frame when set (see UndistortMap)
+	volatile UndistortMap depthUndistort;
+	volatile UndistortMap videoUndistort;
+	int[] pixDepth_raw;				// decoded frame before undistortion
+	int[] pixVideo_snap;			// video frame copied out of the callback's buffer before undistortion
+
+	volatile int videoTimestamp;
+
+	// when set, every raw depth frame is also handed to the recorder
+	volatile DepthRecorder recorder;
+
+
+	// the libfreenect context is only created once a device is actually
+	// requested, so loading this class doesn't need a sensor.  all grabbers
+	// share it; it is shut down when the last one is.
+	static int contextUsers = 0;
+	boolean holdsContext = false;
+
+	static synchronized Context acquireContext() {
+		if (ctx == null) {
+			ctx = Freenect.createContext();
+		}
+		contextUsers++;
+		return ctx;
+	}
+
+	static synchronized void releaseContext() {
+		contextUsers--;
+		if (contextUsers <= 0 && ctx != null) {
+			ctx.shutdown();
+			ctx = null;
+			contextUsers = 0;
+		}
+	}
+
+	// number of Kinects attached to this host
+	public static int numDevices() {
+		Context c = acquireContext();
+		try {
+			return c.numDevices();
+		} finally {
+			releaseContext();
+		}
 	}
 	
 
@@ -57,14 +105,9 @@ public class KinectFrameGrabber {
 		initDevice(deviceNum);
 		
 		pixVideo_back = new int[VIDEO_FRAME_SIZE];
-		pixDepth_back = new int[DEPTH_FRAME_SIZE];
-		
-		QuarterScaleOffsets = new int[DEPTH_FRAME_SIZE];
-		for (int i = 0; i < DEPTH_FRAME_SIZE; i++) {
-			int x = (i % DEPTH_WIDTH) / 2;
-			int y = (i / DEPTH_WIDTH) / 2;
-			QuarterScaleOffsets[i] = y * (DEPTH_WIDTH / 2) + x;			
-		}
+		depthBuffers = new TripleBuffer(DEPTH_FRAME_SIZE);
+		depthDecoder = new DepthDecoder(DEPTH_WIDTH, DEPTH_HEIGHT);
+		depthPyramid = new DepthPyramid(DEPTH_WIDTH, DEPTH_HEIGHT, 3);
 		
 	}		
 	
@@ -81,11 +124,13 @@ public class KinectFrameGrabber {
 		
     	// INITIALIZE DEVICE
 		
-	    if (ctx.numDevices() > 0) {
-	    	dev = ctx.openDevice(deviceNum);
+		Context c = acquireContext();
+	    if (c.numDevices() > deviceNum) {
+	    	dev = c.openDevice(deviceNum);
+	    	holdsContext = true;
 	    } else {
-	    	System.err.println("No kinects detected.  Exiting, dude.");
-	    	System.exit(0);
+	    	releaseContext();
+	    	throw new IllegalStateException("No kinect detected at index " + deviceNum + ".");
 	    }
 
 	}
@@ -120,17 +165,18 @@ public class KinectFrameGrabber {
 	}
 		
 
+	// close this device; the shared context goes away with the last device
 	public void shutdown() {
 	    // SHUT DOWN
 		System.out.println("Shutting down...");
-		if (ctx != null) {
-			if (dev != null) {
-				dev.close();
-			}
-			ctx.shutdown();
+		if (dev != null) {
+			dev.close();
+			dev = null;
+		}
+		if (holdsContext) {
+			holdsContext = false;
+			releaseContext();
 		}
-		ctx = null;
-		dev = null;
 	}
 	
 	
@@ -143,6 +189,7 @@ public class KinectFrameGrabber {
         	public void onFrameReceived(VideoFormat format, ByteBuffer frame, int timestamp) {
 				synchronized (lock) {
 					video_frame_counter++;
+					videoTimestamp = timestamp;
 					int num_samples;
 					int ix = 0;
 					if (pixVideo_back != null) {
@@ -177,7 +224,7 @@ public class KinectFrameGrabber {
 				}
 				frameCount++;
 				if (frameCount == 30) {
-					fpsVideo = ((double) System.nanoTime() - videoStartTime) / 1000000000;
+					fpsVideo = frameCount / (((double) System.nanoTime() - videoStartTime) / 1000000000);
 					if (log_level > 0) {
 						//System.out.format("Got %d video frames in %4.2fs%n", frameCount, fpsVideo);
 					}
@@ -195,26 +242,31 @@ public class KinectFrameGrabber {
         	int frameCount = 0;
 			
         	public void onFrameReceived(DepthFormat format, ByteBuffer frame, int timestamp) {
-				
-				synchronized (lock) {
-					depth_frame_counter++;
-					
-					int ix = 0;
-					if (pixDepth_back != null) {
-						for( int i = 0; i < format.getFrameSize();) {
-							int lo = frame.get(i++) & 255;
-							int hi = frame.get(i++) & 255;
-							int sample = hi << 8 | lo;
-							pixDepth_back[ix++] = sample;
-						}
-					}
-				}
+				long arrival = System.nanoTime();
+
+				// fill the writer slot, then publish it with one atomic swap.
+				// never blocks on the consumer.
+				DepthRecorder r = recorder;
+				boolean packed = DepthDecoder.isPacked(format);
+				boolean mirror = mirrorDepth;
+				if (r != null && !packed) r.offer(frame, timestamp);
+
+				int[] pixDepth_back = depthBuffers.getBackBuffer();
+				UndistortMap undistort = depthUndistort;
+				int[] decoded = undistort != null ? pixDepth_raw : pixDepth_back;
+				depthDecoder.decode(frame, decoded, format, depthDecodeMode, mirror);
+				if (undistort != null) undistort.undistortDepth(decoded, pixDepth_back);
+
+				// recordings always hold 16 bit samples, so packed frames are recorded
+				// decoded, and unmirrored like the raw D11BIT / D10BIT ones
+				if (r != null && packed) r.offer(decoded, timestamp, mirror);
+				depth_frame_counter = depthBuffers.publish(timestamp, arrival);
 				frameCount++;
 				if (frameCount == 30) {
 					if (log_level > 0) {
 						//System.out.format("Got %d depth frames in %4.2fs%n", frameCount, fpsDepth);
 					}
-					fpsDepth = ((double) System.nanoTime() - depthStartTime) / 1000000000;
+					fpsDepth = frameCount / (((double) System.nanoTime() - depthStartTime) / 1000000000);
 					frameCount = 0;
 					depthStartTime = System.nanoTime();
 				}
@@ -270,11 +322,12 @@ public class KinectFrameGrabber {
 	/*
 	SUPPORTED FORMATS
 	D11BIT
-
-	UNSUPPORTED FORMATS
 	D10BIT
-	D11BIT_PACKED
+	D11BIT_PACKED	(~30% less USB bandwidth than D11BIT)
 	D10BIT_PACKED
+
+	Packed formats are unpacked by DepthDecoder straight into the
+	depth back buffer.  Set depthFormat before start().
 	*/
 
 	public void setDepthFormat(DepthFormat fmt) {
@@ -282,18 +335,116 @@ public class KinectFrameGrabber {
 		dev.setDepthFormat(fmt);
 	}
 
-	public void getDepthFrame(int[] dst) {
-		System.arraycopy(pixDepth_back, 0, dst, 0, DEPTH_FRAME_SIZE);
+	// copy newest complete depth frame into dst, returns its sequence number
+	public long getDepthFrame(int[] dst) {
+		return depthBuffers.copyLatest(dst);
 	}
 
+	// same, also filling stamp with the frame's sequence number and timing
+	public long getDepthFrame(int[] dst, FrameStamp stamp) {
+		long sequence = depthBuffers.copyLatest(dst);
+		depthBuffers.getFrontStamp(stamp);
+		return sequence;
+	}
+
+	public void getDepthFrameStamp(FrameStamp stamp) {
+		depthBuffers.getFrontStamp(stamp);
+	}
+
+	// newest complete depth frame without copying.  the returned array
+	// belongs to the grabber and is only valid until the next call.
+	public int[] getDepthFrame() {
+		return depthBuffers.acquire();
+	}
+
+	// sequence number of the frame last returned by getDepthFrame
+	public long getDepthFrameSequence() {
+		return depthBuffers.getFrontSequence();
+	}
+
+	// sensor timestamp of the frame last returned by getDepthFrame
+	public int getDepthTimestamp() {
+		return depthBuffers.getFrontTimestamp();
+	}
+
+	public boolean hasNewDepthFrame() {
+		return depthBuffers.hasNewFrame();
+	}
+
+	public boolean waitForDepthFrame(long timeoutMillis) {
+		return depthBuffers.awaitNewFrame(timeoutMillis * 1000000L);
+	}
+
+	public int getDepthWidth() {
+		return DEPTH_WIDTH;
+	}
+
+	public int getDepthHeight() {
+		return DEPTH_HEIGHT;
+	}
+
+	public boolean hasVideo() {
+		return true;
+	}
+
+	public int getVideoWidth() {
+		return VIDEO_WIDTH;
+	}
+
+	public int getVideoHeight() {
+		return VIDEO_HEIGHT;
+	}
+
+	public int getVideoTimestamp() {
+		return videoTimestamp;
+	}
+
+	// the callback fills pixVideo_back under lock, so the frame is copied out
+	// under it too, and undistorted from the copy
 	public void getVideoFrame(int[] dst) {
-		System.arraycopy(pixVideo_back, 0, dst, 0, VIDEO_FRAME_SIZE);
+		UndistortMap undistort = videoUndistort;
+		int[] src = undistort != null ? pixVideo_snap : dst;
+		synchronized (lock) {
+			System.arraycopy(pixVideo_back, 0, src, 0, VIDEO_FRAME_SIZE);
+		}
+		if (undistort != null) undistort.undistortRGB(src, dst);
+	}
+
+	// correct lens distortion of depth frames as they arrive, null to stop.
+	// the map must be built for the current mirrorDepth setting.
+	public void setDepthUndistort(UndistortMap map) {
+		if (map != null && pixDepth_raw == null) pixDepth_raw = new int[DEPTH_FRAME_SIZE];
+		depthUndistort = map;
+	}
+
+	public UndistortMap getDepthUndistort() {
+		return depthUndistort;
+	}
+
+	// correct lens distortion of video frames handed out by getVideoFrame, null to stop
+	public void setVideoUndistort(UndistortMap map) {
+		if (map != null && pixVideo_snap == null) pixVideo_snap = new int[VIDEO_FRAME_SIZE];
+		videoUndistort = map;
+	}
+
+	public UndistortMap getVideoUndistort() {
+		return videoUndistort;
 	}
 	
+	// half width, half height copy of the depth frame last taken by
+	// getDepthFrame (a quarter of the pixels)
 	public void getDepthFrameQuarterScale(int[] dst) {
-		
-		int avg;
+		DepthPyramid p = getDepthPyramid();
+		System.arraycopy(p.getLevel(1), 0, dst, 0, p.getWidth(1) * p.getHeight(1));
+	}
 
+	// pyramid of the depth frame last taken by getDepthFrame: level 0 is full
+	// size, 1 is 1/2, 2 is 1/4.  a newer frame is not swapped in, so the caller
+	// keeps the frame it holds.  only rebuilt when that frame has changed.
+	public DepthPyramid getDepthPyramid() {
+		int[] depth = depthBuffers.peek();
+		depthPyramid.build(depth, depthBuffers.getFrontSequence());
+		return depthPyramid;
 	}
 
 	public void getVideoFrameQuarterScale(int[] dst) {
@@ -319,6 +470,20 @@ public class KinectFrameGrabber {
 	}
 		
 	
+	// start handing raw depth frames to r (null to stop).  the recorder does
+	// its disk writes on its own thread, the callback only copies the frame.
+	public void setRecorder(DepthRecorder r) {
+		recorder = r;
+	}
+
+	public DepthRecorder getRecorder() {
+		return recorder;
+	}
+
+	public void setMirrorDepth(boolean mirror) {
+		mirrorDepth = mirror;
+	}
+
 	public double getFPSVideo() {
 		return fpsVideo;		
 	}
@@ -0,0 +1,162 @@
+package kinectdigitizer;
+
+import java.util.Arrays;
+
+/*
+ Collects per-frame pipeline timing and reports percentiles.
+
+ For each processed frame the consumer passes the frame's stamp plus the
+ System.nanoTime() at which tracking finished and at which the result
+ was rendered.  From that the monitor keeps
+
+	arrival -> tracked		decode wait + tracking
+	tracked -> rendered		drawing and buffer flip
+	arrival -> rendered		end to end on the host
+
+ and counts frames the consumer never saw (sequence gaps), frames it
+ processed more than once (same sequence again), and gaps in the sensor
+ timestamps larger than 1.5 nominal frame intervals, which point at
+ frames lost before they reached the host.
+
+ Recording a frame is allocation-free; report() sorts copies.
+*/
+public class LatencyMonitor {
+
+	int capacity;
+	long[] tracked;
+	long[] rendered;
+	long[] total;
+	long[] interval;
+	long[] sensorInterval;
+	long[] scratch;
+	int n = 0;			// samples since last reset, capped at capacity
+	int next = 0;		// ring position
+
+	long lastSequence = -1;
+	int lastTimestamp;
+	long lastArrival;
+
+	public long processed = 0;
+	public long dropped = 0;
+	public long duplicates = 0;
+	public long sensorDropped = 0;
+
+	volatile boolean resetRequested = false;
+
+	public LatencyMonitor() {
+		this(1024);
+	}
+
+	public LatencyMonitor(int capacity) {
+		this.capacity = capacity;
+		tracked = new long[capacity];
+		rendered = new long[capacity];
+		total = new long[capacity];
+		interval = new long[capacity];
+		sensorInterval = new long[capacity];
+		scratch = new long[capacity];
+	}
+
+	////////////////////////////////////////////////////
+	// RECORD one pass of the consumer loop
+	////////////////////////////////////////////////////
+	public void frameProcessed(FrameStamp stamp, long trackedNanos, long renderedNanos) {
+		if (resetRequested) {
+			resetRequested = false;
+			reset();
+		}
+		if (stamp.sequence == 0) return;			// nothing published yet
+		if (stamp.sequence == lastSequence) {
+			duplicates++;
+			return;
+		}
+		processed++;
+		long arrivalDelta = -1;
+		long sensorDelta = -1;
+		if (lastSequence >= 0) {
+			if (stamp.sequence > lastSequence + 1) dropped += stamp.sequence - lastSequence - 1;
+			if (stamp.sequence == lastSequence + 1) {
+				arrivalDelta = stamp.arrivalNanos - lastArrival;
+				sensorDelta = (stamp.timestamp - lastTimestamp) & 0xFFFFFFFFL;
+			}
+		}
+		interval[next] = arrivalDelta;
+		sensorInterval[next] = sensorDelta;
+		tracked[next] = trackedNanos - stamp.arrivalNanos;
+		rendered[next] = renderedNanos - trackedNanos;
+		total[next] = renderedNanos - stamp.arrivalNanos;
+		next = (next + 1) % capacity;
+		if (n < capacity) n++;
+
+		if (sensorDelta > 0) {
+			long nominal = nominalSensorInterval();
+			if (nominal > 0 && 2 * sensorDelta > 3 * nominal) {
+				sensorDropped += Math.round((double)sensorDelta / nominal) - 1;
+			}
+		}
+		lastSequence = stamp.sequence;
+		lastTimestamp = stamp.timestamp;
+		lastArrival = stamp.arrivalNanos;
+	}
+
+	// median sensor timestamp step between consecutive frames, learned from the
+	// first samples so no tick rate has to be known
+	long nominal = 0;
+
+	long nominalSensorInterval() {
+		if (nominal == 0 && n >= 32) {
+			nominal = percentile(sensorInterval, 50);
+		}
+		return nominal;
+	}
+
+	////////////////////////////////////////////////////
+	// PERCENTILES over the samples in the ring, in the
+	// units recorded (nanoseconds for latencies).
+	// negative entries mark missing samples.
+	////////////////////////////////////////////////////
+	public long percentile(long[] samples, double p) {
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if (samples[i] >= 0) scratch[m++] = samples[i];
+		}
+		if (m == 0) return -1;
+		Arrays.sort(scratch, 0, m);
+		int k = (int)Math.ceil(p / 100.0 * m) - 1;
+		return scratch[Math.max(0, Math.min(m - 1, k))];
+	}
+
+	public double trackedMillis(double p) { return percentile(tracked, p) / 1e6; }
+	public double renderedMillis(double p) { return percentile(rendered, p) / 1e6; }
+	public double totalMillis(double p) { return percentile(total, p) / 1e6; }
+	public double intervalMillis(double p) { return percentile(interval, p) / 1e6; }
+
+	public String report() {
+		return String.format("latency ms p50/p90/p99  arrival->tracked %.1f/%.1f/%.1f  tracked->rendered %.1f/%.1f/%.1f"
+				+ "  arrival->rendered %.1f/%.1f/%.1f  frame interval p50 %.1f  frames processed %d dropped %d"
+				+ " duplicate %d lost before host %d",
+				trackedMillis(50), trackedMillis(90), trackedMillis(99),
+				renderedMillis(50), renderedMillis(90), renderedMillis(99),
+				totalMillis(50), totalMillis(90), totalMillis(99),
+				intervalMillis(50), processed, dropped, duplicates, sensorDropped);
+	}
+
+	// start over, forgetting the learned frame interval too so a new source or
+	// frame rate is measured afresh.  call on the thread that records frames;
+	// other threads use requestReset.
+	public void reset() {
+		n = 0;
+		next = 0;
+		processed = 0;
+		dropped = 0;
+		duplicates = 0;
+		sensorDropped = 0;
+		nominal = 0;
+		lastSequence = -1;
+	}
+
+	// reset from another thread (a key handler), applied before the next frame is recorded
+	public void requestReset() {
+		resetRequested = true;
+	}
+}
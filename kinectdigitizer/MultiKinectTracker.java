@@ -0,0 +1,240 @@
+package kinectdigitizer;
+
+import imageprocessor.FingerTracker;
+import java.util.Arrays;
+
+/*
+ Runs one FingerTracker per frame source, each on its own worker thread,
+ and merges the fingertips of all sensors into one shared coordinate
+ space so several Kinects can cover one wide touch surface.
+
+ Each sensor has a 2x3 affine placement mapping its depth image pixels
+ into the shared space.  By default sensors are laid out side by side,
+ left to right.  Tips from different sensors that land within
+ mergeRadius of each other (where the sensors overlap) are averaged
+ into one.
+
+ The trackers get no StripExecutor.  Each sensor already has a thread,
+ and StripExecutor.getShared() runs one job at a time, so sharing it
+ would make the sensors wait for each other.
+*/
+public class MultiKinectTracker {
+
+	Sensor[] sensors;
+	public double mergeRadius = 12.0;
+	boolean[] seen;				// devices already merged into the current tip
+
+	public MultiKinectTracker(FrameSource[] sources) {
+		this(sources, 0);
+	}
+
+	public MultiKinectTracker(FrameSource[] sources, int level) {
+		sensors = new Sensor[sources.length];
+		seen = new boolean[sources.length];
+		double x = 0;
+		for (int i = 0; i < sources.length; i++) {
+			sensors[i] = new Sensor(i, sources[i], level);
+			sensors[i].setPlacement(1, 0, x, 0, 1, 0);
+			x += sources[i].getDepthWidth();
+		}
+	}
+
+	// open the first n Kinects on this host, all under one libfreenect context
+	public static MultiKinectTracker openKinects(int n, boolean mirror) {
+		FrameSource[] sources = new FrameSource[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				KinectDigitizer kd = new KinectDigitizer(i);
+				kd.setMirrorDepth(mirror);
+				sources[i] = kd;
+			}
+		} catch (IllegalStateException e) {
+			for (int i = 0; i < n; i++) {
+				if (sources[i] != null) sources[i].shutdown();
+			}
+			throw e;
+		}
+		return new MultiKinectTracker(sources);
+	}
+
+	public int getNumSensors() {
+		return sensors.length;
+	}
+
+	public Sensor getSensor(int i) {
+		return sensors[i];
+	}
+
+	// X = a * x + b * y + c,  Y = d * x + e * y + f
+	public void setPlacement(int sensor, double a, double b, double c, double d, double e, double f) {
+		sensors[sensor].setPlacement(a, b, c, d, e, f);
+	}
+
+	public void setThreshold(int value) {
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i].threshold = value;
+		}
+	}
+
+	public void start() {
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i].start();
+		}
+	}
+
+	public void shutdown() {
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i].shutdown();
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// AGGREGATE fingertips of all sensors in shared
+	// coordinates.  device[k] is the device tip k was
+	// seen by, or -1 if it was merged from several.
+	// returns the number of tips written.
+	////////////////////////////////////////////////////
+	public int getFingers(double[] x, double[] y, int[] device) {
+		int n = 0;
+		for (int i = 0; i < sensors.length; i++) {
+			n = sensors[i].copyFingers(x, y, device, n);
+		}
+
+		// merge tips seen by overlapping sensors.  a merged tip takes at most
+		// one tip per device, so two real fingertips close together on one
+		// sensor stay apart, and later tips are compared against the mean
+		// of those merged so far.
+		double r2 = mergeRadius * mergeRadius;
+		for (int a = 0; a < n; a++) {
+			int count = 1;
+			double sx = x[a];
+			double sy = y[a];
+			Arrays.fill(seen, false);
+			seen[device[a]] = true;
+			for (int b = a + 1; b < n; b++) {
+				if (seen[device[b]]) continue;
+				double dx = x[b] - sx / count;
+				double dy = y[b] - sy / count;
+				if (dx * dx + dy * dy < r2) {
+					seen[device[b]] = true;
+					sx += x[b];
+					sy += y[b];
+					count++;
+					n--;
+					x[b] = x[n];
+					y[b] = y[n];
+					device[b] = device[n];
+					b = a;
+				}
+			}
+			if (count > 1) {
+				x[a] = sx / count;
+				y[a] = sy / count;
+				device[a] = -1;
+			}
+		}
+		return n;
+	}
+
+	////////////////////////////////////////////////////
+	// ONE sensor with its own tracker and worker thread
+	////////////////////////////////////////////////////
+	public static class Sensor implements Runnable {
+
+		public static final int MAX_FINGERS = 64;
+
+		int index;
+		FrameSource source;
+		FingerTracker tracker;
+		Thread worker;
+		volatile boolean running = false;
+		volatile int threshold = 625;
+		double a = 1, b = 0, c = 0, d = 0, e = 1, f = 0;
+
+		// latest results, guarded by this
+		double[] fingerx = new double[MAX_FINGERS];
+		double[] fingery = new double[MAX_FINGERS];
+		int numfingers = 0;
+		FrameStamp stamp = new FrameStamp();
+
+		Sensor(int index, FrameSource source, int level) {
+			this.index = index;
+			this.source = source;
+			tracker = new FingerTracker(source.getDepthWidth(), source.getDepthHeight(), level);
+		}
+
+		synchronized void setPlacement(double a, double b, double c, double d, double e, double f) {
+			this.a = a; this.b = b; this.c = c;
+			this.d = d; this.e = e; this.f = f;
+		}
+
+		public FrameSource getSource() {
+			return source;
+		}
+
+		// only safe to read from the worker thread, or after shutdown
+		public FingerTracker getTracker() {
+			return tracker;
+		}
+
+		void start() {
+			source.start();
+			running = true;
+			worker = new Thread(this, "MultiKinectTracker-" + index);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		public void run() {
+			long lastSequence = 0;
+			while (running) {
+				if (!source.waitForDepthFrame(100)) continue;
+				tracker.setThreshold(threshold);
+				long sequence = tracker.update(source);
+				if (sequence == lastSequence) continue;
+				lastSequence = sequence;
+				publish();
+			}
+		}
+
+		synchronized void publish() {
+			int n = Math.min(tracker.getNumFingers(), MAX_FINGERS);
+			for (int i = 0; i < n; i++) {
+				double x = tracker.getFingerX(i);
+				double y = tracker.getFingerY(i);
+				fingerx[i] = a * x + b * y + c;
+				fingery[i] = d * x + e * y + f;
+			}
+			numfingers = n;
+			stamp.set(tracker.getFrameStamp());
+		}
+
+		synchronized int copyFingers(double[] x, double[] y, int[] device, int offset) {
+			int n = Math.min(numfingers, x.length - offset);
+			System.arraycopy(fingerx, 0, x, offset, n);
+			System.arraycopy(fingery, 0, y, offset, n);
+			for (int i = 0; i < n; i++) {
+				device[offset + i] = index;
+			}
+			return offset + n;
+		}
+
+		// stamp of the frame the current fingertips came from
+		public synchronized void getFrameStamp(FrameStamp s) {
+			s.set(stamp);
+		}
+
+		void shutdown() {
+			running = false;
+			if (worker != null) {
+				worker.interrupt();
+				try {
+					worker.join(1000);
+				} catch (InterruptedException ie) {
+				}
+				worker = null;
+			}
+			source.shutdown();
+		}
+	}
+}
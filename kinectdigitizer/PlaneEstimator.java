@@ -0,0 +1,297 @@
+package kinectdigitizer;
+
+import java.util.Arrays;
+
+/*
+ Finds the dominant plane (the table) in depth frames and turns depth
+ into height above it, so touch can be detected as "within a few mm of
+ the surface" instead of with a global depth cutoff.
+
+ The plane is fitted with RANSAC on a coarse grid of samples (every
+ stride pixels), then refined by least squares on its inliers.  Later
+ frames only re-check the fit on the grid:
+
+	inlier fraction fell well below the fitted one	full RANSAC
+	mean inlier residual drifted					least squares refit
+	otherwise										nothing
+
+ so in steady state a frame costs one pass over the grid plus the
+ height map.
+
+ The plane is n . p + dist = 0 in camera space (cm), oriented so the
+ camera is on the positive side: positive heights are above the table.
+ Height per pixel is Z * (colTerm[col] + rowTerm[row]) + dist, one
+ table lookup and one multiply-add.
+*/
+public class PlaneEstimator {
+
+	public static final int INVALID = 2047;
+
+	DepthCameraModel camera;
+	int width;
+	int height;
+	int stride;
+
+	// sample grid, refilled every frame
+	int gridw;
+	int gridh;
+	float[] sx;
+	float[] sy;
+	float[] sz;
+	int numSamples;
+	boolean[] inlier;
+
+	// plane
+	boolean valid = false;
+	double nx, ny, nz, dist;
+	double fittedFraction;			// inlier fraction right after the last fit
+	double residual;				// mean |distance| of inliers at the last check, cm
+
+	// height map terms, rebuilt when the plane changes
+	float[] colTerm;
+	float[] rowTerm;
+
+	public double tolerance = 1.5;			// inlier distance in cm
+	public int iterations = 100;			// RANSAC hypotheses per full fit
+	public double minFraction = 0.2;		// plane must explain this much of the grid
+	public double refitDrop = 0.75;			// full refit when inliers fall below this share of fittedFraction
+	public double refitResidual = 0.5;		// least squares refit when residual exceeds this share of tolerance
+
+	public int fullFits = 0;
+	public int refits = 0;
+	int seed = 0x2545F491;
+
+	public PlaneEstimator(DepthCameraModel camera) {
+		this(camera, 8);
+	}
+
+	public PlaneEstimator(DepthCameraModel camera, int stride) {
+		this.camera = camera;
+		this.stride = stride;
+		width = camera.getWidth();
+		height = camera.getHeight();
+		gridw = (width + stride - 1) / stride;
+		gridh = (height + stride - 1) / stride;
+		sx = new float[gridw * gridh];
+		sy = new float[gridw * gridh];
+		sz = new float[gridw * gridh];
+		inlier = new boolean[gridw * gridh];
+		colTerm = new float[width];
+		rowTerm = new float[height];
+	}
+
+	public boolean hasPlane() {
+		return valid;
+	}
+
+	// unit normal and offset, n . p + dist = 0, p in cm
+	public void getPlane(double[] plane) {
+		plane[0] = nx;
+		plane[1] = ny;
+		plane[2] = nz;
+		plane[3] = dist;
+	}
+
+	public void reset() {
+		valid = false;
+	}
+
+	////////////////////////////////////////////////////
+	// UPDATE the plane from a depth frame, refitting
+	// only when needed.  returns true if there is one.
+	////////////////////////////////////////////////////
+	public boolean update(int[] depth) {
+		sample(depth);
+		if (numSamples < 3) return valid;
+		if (valid) {
+			double fraction = check();
+			if (fraction < refitDrop * fittedFraction) {
+				ransac();
+			} else if (residual > refitResidual * tolerance) {
+				refine();
+				refits++;
+			}
+		} else {
+			ransac();
+		}
+		return valid;
+	}
+
+	// the grid of valid points, in camera space
+	void sample(int[] depth) {
+		int n = 0;
+		for (int y = stride / 2; y < height; y += stride) {
+			for (int x = stride / 2; x < width; x += stride) {
+				float z = camera.getWorldZ(depth[y * width + x]);
+				if (z != z) continue;			// NaN, no measurement
+				sx[n] = camera.getWorldX(x, z);
+				sy[n] = camera.getWorldY(y, z);
+				sz[n] = z;
+				n++;
+			}
+		}
+		numSamples = n;
+	}
+
+	// mark inliers of the current plane, return their fraction and set residual
+	double check() {
+		int count = 0;
+		double sum = 0;
+		for (int i = 0; i < numSamples; i++) {
+			double e = Math.abs(nx * sx[i] + ny * sy[i] + nz * sz[i] + dist);
+			inlier[i] = e < tolerance;
+			if (inlier[i]) {
+				count++;
+				sum += e;
+			}
+		}
+		residual = count > 0 ? sum / count : Double.MAX_VALUE;
+		return (double)count / numSamples;
+	}
+
+	////////////////////////////////////////////////////
+	// RANSAC over the grid, then least squares on the
+	// winner's inliers
+	////////////////////////////////////////////////////
+	void ransac() {
+		fullFits++;
+		int n = numSamples;
+		int best = 0;
+		double bx = 0, by = 0, bz = 0, bd = 0;
+		for (int it = 0; it < iterations; it++) {
+			int i = random(n);
+			int j = random(n);
+			int k = random(n);
+			if (i == j || j == k || i == k) continue;
+			double ux = sx[j] - sx[i], uy = sy[j] - sy[i], uz = sz[j] - sz[i];
+			double vx = sx[k] - sx[i], vy = sy[k] - sy[i], vz = sz[k] - sz[i];
+			double cx = uy * vz - uz * vy;
+			double cy = uz * vx - ux * vz;
+			double cz = ux * vy - uy * vx;
+			double len = Math.sqrt(cx * cx + cy * cy + cz * cz);
+			if (len < 1e-6) continue;				// collinear
+			cx /= len; cy /= len; cz /= len;
+			double d = -(cx * sx[i] + cy * sy[i] + cz * sz[i]);
+			int count = 0;
+			for (int m = 0; m < n; m++) {
+				if (Math.abs(cx * sx[m] + cy * sy[m] + cz * sz[m] + d) < tolerance) count++;
+			}
+			if (count > best) {
+				best = count;
+				bx = cx; by = cy; bz = cz; bd = d;
+			}
+		}
+		if (best < minFraction * n) {
+			valid = false;
+			return;
+		}
+		setPlane(bx, by, bz, bd);
+		refine();
+	}
+
+	// least squares plane through the current inliers
+	void refine() {
+		check();
+		int count = 0;
+		double mx = 0, my = 0, mz = 0;
+		for (int i = 0; i < numSamples; i++) {
+			if (!inlier[i]) continue;
+			mx += sx[i]; my += sy[i]; mz += sz[i];
+			count++;
+		}
+		if (count < 3) return;
+		mx /= count; my /= count; mz /= count;
+		double xx = 0, xy = 0, xz = 0, yy = 0, yz = 0, zz = 0;
+		for (int i = 0; i < numSamples; i++) {
+			if (!inlier[i]) continue;
+			double x = sx[i] - mx, y = sy[i] - my, z = sz[i] - mz;
+			xx += x * x; xy += x * y; xz += x * z;
+			yy += y * y; yz += y * z; zz += z * z;
+		}
+
+		// normal = eigenvector of the smallest eigenvalue of the covariance,
+		// by power iteration on its adjugate (the inverse up to scale)
+		double a00 = yy * zz - yz * yz, a01 = xz * yz - xy * zz, a02 = xy * yz - xz * yy;
+		double a11 = xx * zz - xz * xz, a12 = xy * xz - xx * yz, a22 = xx * yy - xy * xy;
+		double vx = nx, vy = ny, vz = nz;
+		for (int it = 0; it < 16; it++) {
+			double tx = a00 * vx + a01 * vy + a02 * vz;
+			double ty = a01 * vx + a11 * vy + a12 * vz;
+			double tz = a02 * vx + a12 * vy + a22 * vz;
+			double len = Math.sqrt(tx * tx + ty * ty + tz * tz);
+			if (len < 1e-12) return;				// degenerate, keep the old plane
+			vx = tx / len; vy = ty / len; vz = tz / len;
+		}
+		setPlane(vx, vy, vz, -(vx * mx + vy * my + vz * mz));
+		fittedFraction = check();
+	}
+
+	void setPlane(double a, double b, double c, double d) {
+		if (d < 0) {								// camera on the positive side
+			a = -a; b = -b; c = -c; d = -d;
+		}
+		nx = a; ny = b; nz = c; dist = d;
+		valid = true;
+		for (int col = 0; col < width; col++) {
+			colTerm[col] = (float)(nx * camera.colRay[col]);
+		}
+		for (int row = 0; row < height; row++) {
+			rowTerm[row] = (float)(ny * camera.rowRay[row] + nz);
+		}
+	}
+
+	int random(int n) {
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return (seed >>> 1) % n;
+	}
+
+	////////////////////////////////////////////////////
+	// HEIGHT above the plane in mm, INVALID where
+	// depth is missing or there is no plane
+	////////////////////////////////////////////////////
+	public void heightMap(int[] depth, int[] out) {
+		if (!valid) {
+			Arrays.fill(out, 0, width * height, INVALID);
+			return;
+		}
+		float d10 = (float)(10 * dist);
+		for (int row = 0, i = 0; row < height; row++) {
+			float rt = rowTerm[row];
+			for (int col = 0; col < width; col++, i++) {
+				float z = camera.getWorldZ(depth[i]);
+				out[i] = z != z ? INVALID : Math.round(10 * z * (colTerm[col] + rt) + d10);
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// TOUCH map: height in mm where it lies within
+	// [minHeight, maxHeight], INVALID elsewhere.  feed
+	// it to the tracker with threshold maxHeight + 1 to
+	// contour only what is close to the surface.
+	////////////////////////////////////////////////////
+	public int touchMap(int[] depth, int[] out, int minHeight, int maxHeight) {
+		if (!valid) {
+			Arrays.fill(out, 0, width * height, INVALID);
+			return 0;
+		}
+		float d10 = (float)(10 * dist);
+		int count = 0;
+		for (int row = 0, i = 0; row < height; row++) {
+			float rt = rowTerm[row];
+			for (int col = 0; col < width; col++, i++) {
+				float z = camera.getWorldZ(depth[i]);
+				int mm = z != z ? INVALID : Math.round(10 * z * (colTerm[col] + rt) + d10);
+				if (mm >= minHeight && mm <= maxHeight) {
+					out[i] = mm;
+					count++;
+				} else {
+					out[i] = INVALID;
+				}
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,282 @@
+package kinectdigitizer;
+
+import imageprocessor.FindIsolines;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ Writes point clouds straight from depth frames to disk, through one
+ reusable direct buffer and a FileChannel, with no per-point objects
+ and no text.
+
+ Two outputs:
+
+	writePLY()		one frame as binary little-endian PLY with float x, y, z
+					in cm, readable by the usual mesh tools
+	open()/writeFrame()/close()
+					a stream of frames in the compact KPC format below, which
+					keeps the raw samples (6 bytes a point instead of 12) and
+					the intrinsics to turn them into xyz offline
+
+ Either can be restricted to a foreground mask (e.g.
+ BackgroundModel.getMask(), possibly at a pyramid level) and/or to a
+ set of boxes (e.g. the contour bounding boxes of FindIsolines).
+ Invalid (2047) samples are never written.
+
+ Frames decoded with mirrored rows (setMirrored) are written unmirrored,
+ so columns and x always agree with the intrinsics in the header.
+
+ KPC LAYOUT (little-endian)
+	header, HEADER_SIZE bytes
+		int    magic		'KPC1'
+		int    version
+		int    width
+		int    height
+		float  focal length, cx, cy		in depth pixels
+		int    reserved
+	frames
+		long   sequence
+		int    sensor timestamp
+		int    point count n
+		n * { short col, short row, short raw depth }
+*/
+public class PointCloudExporter {
+
+	public static final int MAGIC = 0x4B504331;		// 'KPC1'
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int FRAME_HEADER_SIZE = 16;
+	public static final int INVALID = 2047;
+	public static final int MAX_BOXES = 64;
+
+	DepthCameraModel camera;
+	int width;
+	int height;
+	ByteBuffer buffer;
+	FileChannel stream;				// open KPC stream, or null
+	long framesWritten = 0;
+
+	// restrictions
+	byte[] mask;
+	int maskShift;
+	int maskWidth;
+	int[] boxes = new int[4 * MAX_BOXES];	// x0, y0, x1, y1 per box, x1 and y1 exclusive
+	int numBoxes = 0;
+	boolean useBoxes = false;
+	boolean mirrored = false;				// depth frames have mirrored rows
+
+	public PointCloudExporter(DepthCameraModel camera) {
+		this(camera, 1 << 18);
+	}
+
+	public PointCloudExporter(DepthCameraModel camera, int bufferSize) {
+		this.camera = camera;
+		width = camera.getWidth();
+		height = camera.getHeight();
+		buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	////////////////////////////////////////////////////
+	// RESTRICT output
+	////////////////////////////////////////////////////
+
+	// only pixels whose mask entry is non-zero; mask is (width >> shift) wide
+	public void setMask(byte[] mask, int shift) {
+		this.mask = mask;
+		maskShift = shift;
+		maskWidth = width >> shift;
+	}
+
+	public void clearBoxes() {
+		numBoxes = 0;
+		useBoxes = false;
+	}
+
+	// only pixels inside at least one box, in depth image pixels
+	public void addBox(int x0, int y0, int x1, int y1) {
+		useBoxes = true;
+		if (numBoxes == MAX_BOXES) return;
+		x0 = Math.max(0, x0);
+		y0 = Math.max(0, y0);
+		x1 = Math.min(width, x1);
+		y1 = Math.min(height, y1);
+		if (x0 >= x1 || y0 >= y1) return;
+		int b = 4 * numBoxes++;
+		boxes[b] = x0;
+		boxes[b + 1] = y0;
+		boxes[b + 2] = x1;
+		boxes[b + 3] = y1;
+	}
+
+	// boxes of the contours of fc (traced at 1/scale resolution), grown by pad pixels
+	public void setBoxes(FindIsolines fc, int scale, int pad) {
+		clearBoxes();
+		useBoxes = true;
+		for (int k = 0; k < fc.getNumContours(); k++) {
+			if (fc.getContourLength(k) == 0) continue;
+			addBox((int)Math.floor(fc.getBBMinX(k) * scale) - pad, (int)Math.floor(fc.getBBMinY(k) * scale) - pad,
+					(int)Math.ceil(fc.getBBMaxX(k) * scale) + pad + 1, (int)Math.ceil(fc.getBBMaxY(k) * scale) + pad + 1);
+		}
+	}
+
+	// frames passed in were decoded mirrored (KinectFrameGrabber.setMirrorDepth).
+	// masks and boxes stay in the mirrored image's pixels.
+	public void setMirrored(boolean mirrored) {
+		this.mirrored = mirrored;
+	}
+
+	public void clearRestrictions() {
+		mask = null;
+		clearBoxes();
+	}
+
+	////////////////////////////////////////////////////
+	// PLY, one frame.  returns the number of points
+	////////////////////////////////////////////////////
+	public int writePLY(String filename, int[] depth) throws IOException {
+		FileChannel channel = new FileOutputStream(filename, false).getChannel();
+		try {
+			// vertex count is patched in once known, so it has a fixed width
+			String header = "ply\nformat binary_little_endian 1.0\nelement vertex 0000000000\n"
+					+ "property float x\nproperty float y\nproperty float z\nend_header\n";
+			int countAt = header.indexOf("0000000000");
+			buffer.clear();
+			for (int i = 0; i < header.length(); i++) {
+				buffer.put((byte)header.charAt(i));
+			}
+			int n = emit(channel, depth, true);
+			flush(channel);
+
+			byte[] count = String.format("%010d", n).getBytes("US-ASCII");
+			ByteBuffer patch = ByteBuffer.wrap(count);
+			channel.write(patch, countAt);
+			return n;
+		} finally {
+			channel.close();
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// KPC STREAM of frames
+	////////////////////////////////////////////////////
+	public void open(String filename) throws IOException {
+		close();
+		stream = new FileOutputStream(filename, false).getChannel();
+		framesWritten = 0;
+		buffer.clear();
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(width);
+		buffer.putInt(height);
+		buffer.putFloat((float)camera.getFocalLength());
+		buffer.putFloat((float)camera.cx);
+		buffer.putFloat((float)camera.cy);
+		buffer.putInt(0);
+		flush(stream);
+	}
+
+	// append one frame, returns its number of points
+	public int writeFrame(int[] depth, long sequence, int timestamp) throws IOException {
+		if (stream == null) throw new IOException("no point cloud stream open");
+		// the count goes in the frame header, so count first; it is cheap
+		// next to the write and keeps the stream single pass
+		int n = count(depth);
+		buffer.clear();
+		buffer.putLong(sequence);
+		buffer.putInt(timestamp);
+		buffer.putInt(n);
+		emit(stream, depth, false);
+		flush(stream);
+		framesWritten++;
+		return n;
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	public boolean isOpen() {
+		return stream != null;
+	}
+
+	public void close() throws IOException {
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+	}
+
+	////////////////////////////////////////////////////
+	// POINT LOOP, shared by counting and writing
+	////////////////////////////////////////////////////
+	int count(int[] depth) throws IOException {
+		return visit(null, depth, false, false);
+	}
+
+	int emit(FileChannel channel, int[] depth, boolean xyz) throws IOException {
+		return visit(channel, depth, xyz, true);
+	}
+
+	int visit(FileChannel channel, int[] depth, boolean xyz, boolean write) throws IOException {
+		int n = 0;
+		if (useBoxes) {
+			for (int b = 0; b < numBoxes; b++) {
+				int x0 = boxes[4 * b], y0 = boxes[4 * b + 1];
+				int x1 = boxes[4 * b + 2], y1 = boxes[4 * b + 3];
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						if (inEarlierBox(b, x, y)) continue;
+						n += point(channel, depth, x, y, xyz, write);
+					}
+				}
+			}
+		} else {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					n += point(channel, depth, x, y, xyz, write);
+				}
+			}
+		}
+		return n;
+	}
+
+	// overlapping boxes must not write a point twice
+	boolean inEarlierBox(int b, int x, int y) {
+		for (int e = 0; e < b; e++) {
+			if (x >= boxes[4 * e] && y >= boxes[4 * e + 1] && x < boxes[4 * e + 2] && y < boxes[4 * e + 3]) return true;
+		}
+		return false;
+	}
+
+	int point(FileChannel channel, int[] depth, int x, int y, boolean xyz, boolean write) throws IOException {
+		int d = depth[y * width + x];
+		if (d >= INVALID) return 0;
+		if (mask != null && mask[(y >> maskShift) * maskWidth + (x >> maskShift)] == 0) return 0;
+		if (!write) return 1;
+		if (buffer.remaining() < 12) flush(channel);
+		int col = mirrored ? width - 1 - x : x;
+		if (xyz) {
+			float z = camera.getWorldZ(d);
+			if (z != z) return 0;
+			buffer.putFloat(camera.getWorldX(col, z));
+			buffer.putFloat(camera.getWorldY(y, z));
+			buffer.putFloat(z);
+		} else {
+			buffer.putShort((short)col);
+			buffer.putShort((short)y);
+			buffer.putShort((short)d);
+		}
+		return 1;
+	}
+
+	void flush(FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
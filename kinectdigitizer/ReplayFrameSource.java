@@ -0,0 +1,63 @@
+package kinectdigitizer;
+
+import java.io.*;
+
+/*
+ Replays a DepthRecorder file through the FrameSource interface.
+
+ In real-time mode frames are paced by the arrival times stored in the
+ recording, so the pipeline sees the same timing it saw live.  With
+ real-time off, frames are published back to back for profiling.
+ Original sensor timestamps are passed through.
+*/
+public class ReplayFrameSource extends ThreadedFrameSource {
+
+	DepthRecording recording;
+	public boolean loop = true;
+	public boolean realTime = true;
+	public boolean mirrorDepth = false;
+
+	public ReplayFrameSource(String filename) throws IOException {
+		this(new DepthRecording(filename));
+	}
+
+	public ReplayFrameSource(DepthRecording recording) {
+		super(recording.getWidth(), recording.getHeight(), 30);
+		this.recording = recording;
+	}
+
+	public void setRealTime(boolean realTime) {
+		this.realTime = realTime;
+	}
+
+	public void setLoop(boolean loop) {
+		this.loop = loop;
+	}
+
+	public int getNumFrames() {
+		return recording.getNumFrames();
+	}
+
+	protected long frameDelayNanos(long frameIndex) {
+		int n = recording.getNumFrames();
+		if (!realTime || n == 0) return 0;
+		int k = (int)(frameIndex % n);
+		if (frameIndex == 0 || k == 0) return frameIntervalNanos;
+		long delay = recording.getArrivalNanos(k) - recording.getArrivalNanos(k - 1);
+		return delay > 0 ? delay : frameIntervalNanos;
+	}
+
+	protected boolean renderDepthFrame(int[] dst, long frameIndex) {
+		int n = recording.getNumFrames();
+		if (n == 0 || (frameIndex >= n && !loop)) return false;
+		int k = (int)(frameIndex % n);
+		recording.readFrame(k, dst, mirrorDepth);
+		frameTimestamp = recording.getTimestamp(k);
+		return true;
+	}
+
+	public void shutdown() {
+		super.shutdown();
+		recording.close();
+	}
+}
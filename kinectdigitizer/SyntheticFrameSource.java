@@ -0,0 +1,131 @@
+package kinectdigitizer;
+
+import java.util.Arrays;
+
+/*
+ Generates depth frames of an open hand moving slowly over a tilted
+ table, so the tracking pipeline can be profiled and load-tested
+ without a sensor.  Frames are deterministic for a given frame index.
+
+ The hand sits in front of the default depth cutoff (625), the table
+ behind it.  Optional speckle noise punches 2047 holes and jitters
+ values the way real Kinect depth does around edges.
+*/
+public class SyntheticFrameSource extends ThreadedFrameSource {
+
+	public int tableDepth = 800;		// raw depth of the table at the top row
+	public int tableSlope = 8;			// raw depth increase per 64 rows
+	public int handDepth = 590;
+	public double palmRadius = 55;
+	public double fingerRadius = 9;
+	public double noise = 0.0;			// fraction of edge pixels turned into holes
+
+	// finger angles from vertical (radians) and lengths (pixels)
+	double[] fingerAngle = { -1.1, -0.45, -0.15, 0.15, 0.45 };
+	double[] fingerLength = { 65, 85, 95, 90, 75 };
+
+	// finger base and tip positions for the frame being rendered
+	double[] bx = new double[5];
+	double[] by = new double[5];
+	double[] tx = new double[5];
+	double[] ty = new double[5];
+
+	int seed = 12345;
+
+	public SyntheticFrameSource() {
+		this(640, 480, 30);
+	}
+
+	public SyntheticFrameSource(int width, int height, double fps) {
+		super(width, height, fps);
+	}
+
+	public void setNoise(double noise) {
+		this.noise = noise;
+	}
+
+	protected boolean renderDepthFrame(int[] dst, long frameIndex) {
+		renderFrame(dst, frameIndex);
+		frameTimestamp = (int)(frameIndex * 33333);		// microseconds at 30 Hz
+		return true;
+	}
+
+	////////////////////////////////////////////////////
+	// RENDER frame number frameIndex into dst
+	////////////////////////////////////////////////////
+	public void renderFrame(int[] dst, long frameIndex) {
+
+		// table
+		for (int y = 0; y < height; y++) {
+			Arrays.fill(dst, y * width, (y + 1) * width, tableDepth + (y * tableSlope) / 64);
+		}
+
+		// hand moves on a slow ellipse around the centre of the frame
+		double phase = frameIndex * 0.02;
+		double cx = width / 2 + 0.25 * width * Math.cos(phase);
+		double cy = height / 2 + 40 + 0.15 * height * Math.sin(phase);
+		double tilt = 0.3 * Math.sin(phase * 0.7);
+
+		double reach = palmRadius;
+		for (int f = 0; f < 5; f++) {
+			double a = fingerAngle[f] + tilt;
+			bx[f] = cx + 0.8 * palmRadius * Math.sin(a);
+			by[f] = cy - 0.8 * palmRadius * Math.cos(a);
+			tx[f] = bx[f] + fingerLength[f] * Math.sin(a);
+			ty[f] = by[f] - fingerLength[f] * Math.cos(a);
+			reach = Math.max(reach, 0.8 * palmRadius + fingerLength[f] + fingerRadius);
+		}
+
+		int x0 = Math.max(1, (int)(cx - reach));
+		int x1 = Math.min(width - 2, (int)(cx + reach));
+		int y0 = Math.max(1, (int)(cy - reach));
+		int y1 = Math.min(height - 2, (int)(cy + palmRadius + 3));
+		double pr = palmRadius;
+		double fr = fingerRadius;
+		seed = (int)(frameIndex * 2654435761L) | 1;
+
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+
+				// signed distance to the hand outline, negative inside
+				double dx = x - cx;
+				double dy = y - cy;
+				double dist = Math.sqrt(dx * dx + dy * dy) - pr;
+				for (int f = 0; f < 5; f++) {
+					double df = Math.sqrt(segmentDistance2(x, y, bx[f], by[f], tx[f], ty[f])) - fr;
+					if (df < dist) dist = df;
+				}
+				if (dist > 2) continue;
+
+				int idx = y * width + x;
+				if (dist <= 0) dst[idx] = handDepth + (int)((y - cy) / 16);
+				if (noise > 0 && dist > -2) {
+					int r = nextRandom();
+					if ((r & 0xFFFF) < noise * 0x10000) {
+						dst[idx] = 2047;
+					} else if (dist <= 0) {
+						dst[idx] += ((r >>> 16) % 5) - 2;
+					}
+				}
+			}
+		}
+	}
+
+	static double segmentDistance2(double px, double py, double ax, double ay, double bx, double by) {
+		double vx = bx - ax;
+		double vy = by - ay;
+		double t = ((px - ax) * vx + (py - ay) * vy) / (vx * vx + vy * vy);
+		if (t < 0) t = 0;
+		else if (t > 1) t = 1;
+		double dx = px - (ax + t * vx);
+		double dy = py - (ay + t * vy);
+		return dx * dx + dy * dy;
+	}
+
+	int nextRandom() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+}
@@ -0,0 +1,165 @@
+package kinectdigitizer;
+
+/*
+ Base for frame sources that are not driven by libfreenect callbacks.
+ A daemon thread renders depth frames into the back slot of a triple
+ buffer and publishes them, either paced at a frame interval or as fast
+ as possible, so consumers see the same behaviour as with a live device.
+*/
+public abstract class ThreadedFrameSource implements FrameSource, Runnable {
+
+	protected int width;
+	protected int height;
+	protected TripleBuffer depthBuffers;
+
+	// 0 means publish frames back to back, as fast as they can be rendered
+	protected long frameIntervalNanos;
+
+	Thread thread;
+	volatile boolean running = false;
+
+	public long depth_frame_counter = 0;
+
+	public ThreadedFrameSource(int width, int height, double fps) {
+		this.width = width;
+		this.height = height;
+		depthBuffers = new TripleBuffer(width * height);
+		setFrameRate(fps);
+	}
+
+	public void setFrameRate(double fps) {
+		frameIntervalNanos = fps > 0 ? (long)(1000000000.0 / fps) : 0;
+	}
+
+	////////////////////////////////////////////////////
+	// SUBCLASS HOOKS
+	////////////////////////////////////////////////////
+
+	// fill dst with frame number frameIndex and set frameTimestamp to its
+	// sensor timestamp.  return false when there are no more frames.
+	protected abstract boolean renderDepthFrame(int[] dst, long frameIndex);
+
+	protected int frameTimestamp;
+
+	// delay between frameIndex - 1 and frameIndex
+	protected long frameDelayNanos(long frameIndex) {
+		return frameIntervalNanos;
+	}
+
+	////////////////////////////////////////////////////
+	// PRODUCER THREAD
+	////////////////////////////////////////////////////
+
+	public void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(this, getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		long next = System.nanoTime();
+		for (long frameIndex = 0; running; frameIndex++) {
+			long delay = frameDelayNanos(frameIndex);
+			if (delay > 0) {
+				next += delay;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					} catch (InterruptedException e) {
+						break;
+					}
+				} else {
+					next = System.nanoTime();
+				}
+			}
+			long arrival = System.nanoTime();
+			if (!renderDepthFrame(depthBuffers.getBackBuffer(), frameIndex)) break;
+			depth_frame_counter = depthBuffers.publish(frameTimestamp, arrival);
+		}
+		running = false;
+	}
+
+	public void shutdown() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+			}
+			thread = null;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	////////////////////////////////////////////////////
+	// FrameSource
+	////////////////////////////////////////////////////
+
+	public boolean waitForDepthFrame(long timeoutMillis) {
+		return depthBuffers.awaitNewFrame(timeoutMillis * 1000000L);
+	}
+
+	public int getDepthWidth() {
+		return width;
+	}
+
+	public int getDepthHeight() {
+		return height;
+	}
+
+	public long getDepthFrame(int[] dst) {
+		return depthBuffers.copyLatest(dst);
+	}
+
+	public long getDepthFrame(int[] dst, FrameStamp stamp) {
+		long sequence = depthBuffers.copyLatest(dst);
+		depthBuffers.getFrontStamp(stamp);
+		return sequence;
+	}
+
+	public void getDepthFrameStamp(FrameStamp stamp) {
+		depthBuffers.getFrontStamp(stamp);
+	}
+
+	public int[] getDepthFrame() {
+		return depthBuffers.acquire();
+	}
+
+	public long getDepthFrameSequence() {
+		return depthBuffers.getFrontSequence();
+	}
+
+	public int getDepthTimestamp() {
+		return depthBuffers.getFrontTimestamp();
+	}
+
+	public boolean hasNewDepthFrame() {
+		return depthBuffers.hasNewFrame();
+	}
+
+	public boolean hasVideo() {
+		return false;
+	}
+
+	public int getVideoWidth() {
+		return 0;
+	}
+
+	public int getVideoHeight() {
+		return 0;
+	}
+
+	public void getVideoFrame(int[] dst) {
+	}
+
+	public int getVideoTimestamp() {
+		return 0;
+	}
+}
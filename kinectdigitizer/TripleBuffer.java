@@ -0,0 +1,141 @@
+package kinectdigitizer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ Lock-free triple buffer for handing frames from one producer thread
+ (the libfreenect callback) to one consumer thread.
+
+ The writer always owns one slot, the reader owns another, and the
+ third slot holds the most recently published frame.  Publishing and
+ acquiring are a single atomic swap of the middle slot index, so the
+ writer never waits on the reader and neither side allocates.
+
+ The reader may park in awaitNewFrame() until something is published.
+ The writer only unparks it, it never takes a lock.
+*/
+public class TripleBuffer {
+
+	// low two bits of state hold the index of the middle (ready) slot,
+	// FRESH is set when the middle slot holds a frame the reader has not seen
+	static final int INDEX_MASK = 0x3;
+	static final int FRESH = 0x4;
+
+	final int[][] slots;
+	final long[] sequence = new long[3];
+	final int[] timestamp = new int[3];
+	final long[] arrival = new long[3];
+
+	final AtomicInteger state = new AtomicInteger(1);
+	int back = 0;			// owned by the writer
+	int front = 2;			// owned by the reader
+	long published = 0;		// owned by the writer
+	volatile Thread waiter;	// reader parked in awaitNewFrame, if any
+
+	public TripleBuffer(int size) {
+		slots = new int[3][size];
+	}
+
+	////////////////////////////////////////////////////
+	// WRITER SIDE
+	////////////////////////////////////////////////////
+
+	// buffer the writer should fill next
+	public int[] getBackBuffer() {
+		return slots[back];
+	}
+
+	// make the back buffer the newest frame and take over the old middle slot
+	public long publish() {
+		return publish(0);
+	}
+
+	// same, tagging the frame with the sensor timestamp
+	public long publish(int sensorTimestamp) {
+		return publish(sensorTimestamp, System.nanoTime());
+	}
+
+	// same, also recording when the frame arrived (System.nanoTime())
+	public long publish(int sensorTimestamp, long arrivalNanos) {
+		published++;
+		sequence[back] = published;
+		timestamp[back] = sensorTimestamp;
+		arrival[back] = arrivalNanos;
+		back = state.getAndSet(back | FRESH) & INDEX_MASK;
+		Thread w = waiter;
+		if (w != null) LockSupport.unpark(w);
+		return published;
+	}
+
+	////////////////////////////////////////////////////
+	// READER SIDE
+	////////////////////////////////////////////////////
+
+	// true if a frame newer than the current front buffer is waiting
+	public boolean hasNewFrame() {
+		return (state.get() & FRESH) != 0;
+	}
+
+	// block until a frame newer than the front buffer has been published,
+	// or the timeout passes.  returns true if there is a new frame.
+	public boolean awaitNewFrame(long timeoutNanos) {
+		if (hasNewFrame()) return true;
+		long deadline = System.nanoTime() + timeoutNanos;
+		waiter = Thread.currentThread();
+		try {
+			// the writer sets FRESH before it reads waiter, and we set waiter
+			// before we test FRESH, so a publish can't slip between the two
+			while (!hasNewFrame()) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0 || Thread.currentThread().isInterrupted()) return false;
+				LockSupport.parkNanos(this, left);
+			}
+			return true;
+		} finally {
+			waiter = null;
+		}
+	}
+
+	// swap in the newest frame if there is one and return the front buffer.
+	// the returned array stays valid until the next call to acquire().
+	public int[] acquire() {
+		if ((state.get() & FRESH) != 0) {
+			front = state.getAndSet(front) & INDEX_MASK;
+		}
+		return slots[front];
+	}
+
+	// the front buffer as it is, without swapping in a newer frame: the
+	// frame the last acquire() returned, so the reader can look at it again
+	public int[] peek() {
+		return slots[front];
+	}
+
+	// sequence number of the frame currently held in the front buffer,
+	// 0 if nothing has been published yet
+	public long getFrontSequence() {
+		return sequence[front];
+	}
+
+	// sensor timestamp of the frame currently held in the front buffer
+	public int getFrontTimestamp() {
+		return timestamp[front];
+	}
+
+	// fill stamp with the identity of the frame in the front buffer
+	public void getFrontStamp(FrameStamp stamp) {
+		stamp.set(sequence[front], timestamp[front], arrival[front]);
+	}
+
+	// copy newest frame into dst and return its sequence number
+	public long copyLatest(int[] dst) {
+		int[] src = acquire();
+		System.arraycopy(src, 0, dst, 0, Math.min(src.length, dst.length));
+		return sequence[front];
+	}
+
+	public int size() {
+		return slots[0].length;
+	}
+}